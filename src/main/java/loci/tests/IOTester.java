@@ -29,7 +29,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
+import loci.common.Location;
 import loci.common.RandomAccessInputStream;
+import loci.tests.testng.ReadAheadHandle;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +50,10 @@ public class IOTester {
   private static final int SIZE = 50 * 1024 * 1024; // in bytes
   private static final long NUM_DOTS = 80;
 
+  /** Block sizes with which to compare read-ahead to sequential reads. */
+  private static final int[] READ_AHEAD_SIZES =
+    {65536, 262144, 1048576, 4194304};
+
   private static final String ALPHANUM =
     "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz1234567890";
 
@@ -149,6 +155,28 @@ public class IOTester {
     return offset;
   }
 
+  /**
+   * Searches for the divider tag using repeated readChar() calls, reading
+   * ahead in blocks of the given size. Returns the time taken in ms.
+   */
+  public long testReadAhead(String filename, int blockSize)
+    throws IOException
+  {
+    LOGGER.info("Searching sequentially with read-ahead in blocks of {}...",
+      blockSize);
+    ReadAheadHandle handle = new ReadAheadHandle(filename, blockSize);
+    Location.mapFile(filename, handle);
+    try {
+      long start = System.currentTimeMillis();
+      testSequential(filename);
+      return System.currentTimeMillis() - start;
+    }
+    finally {
+      Location.mapFile(filename, null);
+      handle.close();
+    }
+  }
+
   public void deleteData(String filename) {
     LOGGER.info("Deleting {}", filename);
     File f = new File(filename);
@@ -175,13 +203,24 @@ public class IOTester {
     testBlock(file2, 262144);
     testBlock(file3, 524288);
     testBlock(file4, 1048576);
+    long start = System.currentTimeMillis();
     testSequential(file5);
+    long sequential = System.currentTimeMillis() - start;
 
     deleteData(file1);
     deleteData(file2);
     deleteData(file3);
     deleteData(file4);
     deleteData(file5);
+
+    for (int blockSize : READ_AHEAD_SIZES) {
+      String file = prefix + "-readahead-" + blockSize + ".tmp";
+      saveData(file, data);
+      long time = testReadAhead(file, blockSize);
+      LOGGER.info("Read-ahead in blocks of {}: {} ms, {} ms without",
+        new Object[] {blockSize, time, sequential});
+      deleteData(file);
+    }
   }
 
   public static void main(String[] args) throws IOException {
@@ -26,26 +26,26 @@
 package loci.tests;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Map;
 
 import loci.formats.FormatException;
-import loci.formats.ImageReader;
+import loci.tests.testng.CompressedInputTest;
 
 /**
  * A class for testing {@link loci.common.RandomAccessInputStream}'s
  * ability to handle files compressed with gz, zip or bz2.
+ * The compressed copies are created in-process; see
+ * {@link CompressedInputTest} for the measurements.
  *
  * @author Curtis Rueden ctrueden at wisc.edu
  */
 public class ZipTester {
 
-  private static ImageReader reader = new ImageReader();
+  /** Number of random tiles read from each copy. */
+  private static final int TILES = 32;
 
-  public static void main(String[] args)
-    throws IOException, FormatException, InterruptedException
-  {
+  public static void main(String[] args) throws IOException, FormatException {
     if (args.length < 2) {
       System.out.println("Usage: java loci.tests.ZipTester " +
         "/path/to/input-file /path/to/output-folder");
@@ -66,65 +66,23 @@ public class ZipTester {
     File tmp = new File(out, "ZipTester.tmp");
     if (!tmp.exists()) tmp.mkdir();
 
-    // copy original file into working directory
-    String name = in.getName();
-    String id = new File(tmp, name).getPath();
-    System.out.println("cp '" + in.getPath() + "' '" + id + "'");
-    FileInputStream fin = new FileInputStream(in);
-    FileOutputStream fout = new FileOutputStream(id);
-    byte[] buf = new byte[8192];
-    while (true) {
-      int r = fin.read(buf);
-      if (r <= 0) break;
-      fout.write(buf, 0, r);
+    Map<String, String> variants =
+      CompressedInputTest.createVariants(in, tmp);
+    try {
+      System.out.println("Timing " + variants.size() + " variants of " +
+        in.getName());
+      CompressedInputTest.report(in.getName(),
+        CompressedInputTest.measureAll(variants, TILES));
+    }
+    finally {
+      // clean up
+      for (Map.Entry<String, String> variant : variants.entrySet()) {
+        if (!variant.getKey().equals("plain")) {
+          new File(variant.getValue()).delete();
+        }
+      }
+      tmp.delete();
     }
-    fout.close();
-    fin.close();
-
-    time(id);
-
-    Runtime r = Runtime.getRuntime();
-    String[] cmd;
-
-    // test zip archive
-    String zip = id + ".zip";
-    cmd = new String[] {"zip", zip, id};
-    System.out.println("zip '" + zip + "' '" + id + "'");
-    r.exec(cmd).waitFor();
-    time(zip);
-
-    // test bz2 archive
-    String bz2 = id + ".bz2";
-    cmd = new String[] {"bzip2", "-k", id};
-    System.out.println("bzip2 -k '" + id + "'");
-    r.exec(cmd).waitFor();
-    time(bz2);
-
-    // create gz archive
-    String gz = id + ".gz";
-    cmd = new String[] {"gzip", id};
-    System.out.println("gzip '" + id + "'");
-    r.exec(cmd).waitFor();
-    time(gz);
-
-    // clean up
-    new File(zip).delete();
-    new File(bz2).delete();
-    new File(gz).delete();
-    tmp.delete();
-  }
-
-  public static void time(String id) throws IOException, FormatException {
-    System.out.print("Timing " + new File(id).getName() + ": ");
-    long t1 = System.currentTimeMillis();
-    boolean result = reader.isThisType(id);
-    long t2 = System.currentTimeMillis();
-    System.out.print((t2 - t1) + " ms to check type (" + result + "); ");
-    long t3 = System.currentTimeMillis();
-    reader.setId(id);
-    long t4 = System.currentTimeMillis();
-    System.out.println((t4 - t3) + " ms to initialize");
-    reader.close();
   }
 
 }
@@ -0,0 +1,405 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.TreeMap;
+
+import loci.common.IRandomAccess;
+
+/**
+ * IRandomAccess wrapper that counts the bytes read through it, the number of
+ * read calls, the number of seeks that change the file pointer, and the
+ * number of distinct bytes touched. Map it over a file with
+ * {@link loci.common.Location#mapFile(String, IRandomAccess)} so that
+ * readers opening that file go through the wrapper. Like any other mapped
+ * handle, it is not closed when a RandomAccessInputStream is closed.
+ */
+public class AccountingHandle implements IRandomAccess {
+
+  // -- Fields --
+
+  private IRandomAccess handle;
+
+  private long bytesRead = 0;
+
+  private long readCount = 0;
+
+  private long seekCount = 0;
+
+  /** Touched byte ranges, as start offset to end offset (exclusive). */
+  private TreeMap<Long, Long> touched = new TreeMap<Long, Long>();
+
+  private long distinctBytes = 0;
+
+  // -- Constructor --
+
+  public AccountingHandle(IRandomAccess handle) {
+    this.handle = handle;
+  }
+
+  // -- AccountingHandle API methods --
+
+  /** Returns the wrapped handle. */
+  public IRandomAccess getHandle() {
+    return handle;
+  }
+
+  /** Returns the total number of bytes read so far. */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /** Returns the number of read calls made so far. */
+  public long getReadCount() {
+    return readCount;
+  }
+
+  /** Returns the number of seeks that moved the file pointer. */
+  public long getSeekCount() {
+    return seekCount;
+  }
+
+  /**
+   * Returns the number of distinct bytes read since construction or the
+   * last call to {@link #clearTouched()}.
+   */
+  public long getDistinctBytes() {
+    return distinctBytes;
+  }
+
+  /** Forgets which bytes have been read, e.g. at the start of a phase. */
+  public void clearTouched() {
+    touched.clear();
+    distinctBytes = 0;
+  }
+
+  // -- Helper methods --
+
+  /** Records a read of the given number of bytes at the given offset. */
+  private void count(long offset, long bytes) {
+    readCount++;
+    if (bytes <= 0) {
+      return;
+    }
+    bytesRead += bytes;
+
+    // merge the range with any ranges it overlaps or adjoins
+    long start = offset;
+    long end = offset + bytes;
+    long removed = 0;
+    Map.Entry<Long, Long> previous = touched.floorEntry(start);
+    if (previous != null && previous.getValue() >= start) {
+      removed += previous.getValue() - previous.getKey();
+      start = previous.getKey();
+      end = Math.max(end, previous.getValue());
+      touched.remove(previous.getKey());
+    }
+    Map.Entry<Long, Long> next = touched.ceilingEntry(start);
+    while (next != null && next.getKey() <= end) {
+      removed += next.getValue() - next.getKey();
+      end = Math.max(end, next.getValue());
+      touched.remove(next.getKey());
+      next = touched.ceilingEntry(start);
+    }
+    touched.put(start, end);
+    distinctBytes += (end - start) - removed;
+  }
+
+  // -- IRandomAccess API methods --
+
+  @Override
+  public void close() throws IOException {
+    handle.close();
+  }
+
+  @Override
+  public long getFilePointer() throws IOException {
+    return handle.getFilePointer();
+  }
+
+  @Override
+  public long length() throws IOException {
+    return handle.length();
+  }
+
+  @Override
+  public ByteOrder getOrder() {
+    return handle.getOrder();
+  }
+
+  @Override
+  public void setOrder(ByteOrder order) {
+    handle.setOrder(order);
+  }
+
+  @Override
+  public int read(byte[] b) throws IOException {
+    long offset = handle.getFilePointer();
+    int n = handle.read(b);
+    count(offset, n);
+    return n;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    long offset = handle.getFilePointer();
+    int n = handle.read(b, off, len);
+    count(offset, n);
+    return n;
+  }
+
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    long offset = handle.getFilePointer();
+    int n = handle.read(buffer);
+    count(offset, n);
+    return n;
+  }
+
+  @Override
+  public int read(ByteBuffer buffer, int off, int len) throws IOException {
+    long offset = handle.getFilePointer();
+    int n = handle.read(buffer, off, len);
+    count(offset, n);
+    return n;
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    if (pos != handle.getFilePointer()) {
+      seekCount++;
+    }
+    handle.seek(pos);
+  }
+
+  @Override
+  public void write(ByteBuffer buf) throws IOException {
+    handle.write(buf);
+  }
+
+  @Override
+  public void write(ByteBuffer buf, int off, int len) throws IOException {
+    handle.write(buf, off, len);
+  }
+
+  // -- DataInput API methods --
+
+  @Override
+  public boolean readBoolean() throws IOException {
+    long offset = handle.getFilePointer();
+    boolean v = handle.readBoolean();
+    count(offset, 1);
+    return v;
+  }
+
+  @Override
+  public byte readByte() throws IOException {
+    long offset = handle.getFilePointer();
+    byte v = handle.readByte();
+    count(offset, 1);
+    return v;
+  }
+
+  @Override
+  public char readChar() throws IOException {
+    long offset = handle.getFilePointer();
+    char v = handle.readChar();
+    count(offset, 2);
+    return v;
+  }
+
+  @Override
+  public double readDouble() throws IOException {
+    long offset = handle.getFilePointer();
+    double v = handle.readDouble();
+    count(offset, 8);
+    return v;
+  }
+
+  @Override
+  public float readFloat() throws IOException {
+    long offset = handle.getFilePointer();
+    float v = handle.readFloat();
+    count(offset, 4);
+    return v;
+  }
+
+  @Override
+  public void readFully(byte[] b) throws IOException {
+    long offset = handle.getFilePointer();
+    handle.readFully(b);
+    count(offset, b.length);
+  }
+
+  @Override
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    long offset = handle.getFilePointer();
+    handle.readFully(b, off, len);
+    count(offset, len);
+  }
+
+  @Override
+  public int readInt() throws IOException {
+    long offset = handle.getFilePointer();
+    int v = handle.readInt();
+    count(offset, 4);
+    return v;
+  }
+
+  @Override
+  public String readLine() throws IOException {
+    long offset = handle.getFilePointer();
+    String v = handle.readLine();
+    count(offset, handle.getFilePointer() - offset);
+    return v;
+  }
+
+  @Override
+  public long readLong() throws IOException {
+    long offset = handle.getFilePointer();
+    long v = handle.readLong();
+    count(offset, 8);
+    return v;
+  }
+
+  @Override
+  public short readShort() throws IOException {
+    long offset = handle.getFilePointer();
+    short v = handle.readShort();
+    count(offset, 2);
+    return v;
+  }
+
+  @Override
+  public int readUnsignedByte() throws IOException {
+    long offset = handle.getFilePointer();
+    int v = handle.readUnsignedByte();
+    count(offset, 1);
+    return v;
+  }
+
+  @Override
+  public int readUnsignedShort() throws IOException {
+    long offset = handle.getFilePointer();
+    int v = handle.readUnsignedShort();
+    count(offset, 2);
+    return v;
+  }
+
+  @Override
+  public String readUTF() throws IOException {
+    long offset = handle.getFilePointer();
+    String v = handle.readUTF();
+    count(offset, handle.getFilePointer() - offset);
+    return v;
+  }
+
+  @Override
+  public int skipBytes(int n) throws IOException {
+    if (n > 0) {
+      seekCount++;
+    }
+    return handle.skipBytes(n);
+  }
+
+  // -- DataOutput API methods --
+
+  @Override
+  public void write(byte[] b) throws IOException {
+    handle.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    handle.write(b, off, len);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    handle.write(b);
+  }
+
+  @Override
+  public void writeBoolean(boolean v) throws IOException {
+    handle.writeBoolean(v);
+  }
+
+  @Override
+  public void writeByte(int v) throws IOException {
+    handle.writeByte(v);
+  }
+
+  @Override
+  public void writeBytes(String s) throws IOException {
+    handle.writeBytes(s);
+  }
+
+  @Override
+  public void writeChar(int v) throws IOException {
+    handle.writeChar(v);
+  }
+
+  @Override
+  public void writeChars(String s) throws IOException {
+    handle.writeChars(s);
+  }
+
+  @Override
+  public void writeDouble(double v) throws IOException {
+    handle.writeDouble(v);
+  }
+
+  @Override
+  public void writeFloat(float v) throws IOException {
+    handle.writeFloat(v);
+  }
+
+  @Override
+  public void writeInt(int v) throws IOException {
+    handle.writeInt(v);
+  }
+
+  @Override
+  public void writeLong(long v) throws IOException {
+    handle.writeLong(v);
+  }
+
+  @Override
+  public void writeShort(int v) throws IOException {
+    handle.writeShort(v);
+  }
+
+  @Override
+  public void writeUTF(String str) throws IOException {
+    handle.writeUTF(str);
+  }
+
+}
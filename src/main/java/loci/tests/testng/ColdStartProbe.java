@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import loci.common.Constants;
+import loci.formats.ImageReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures opening a dataset in a newly started JVM, so that class loading
+ * and interpreted execution are included, as they would be for a user
+ * opening a single file. {@link #measure(String)} starts a child JVM with
+ * the current class path, which runs {@link #main(String[])} and prints the
+ * measurements on a single line.
+ */
+public class ColdStartProbe {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ColdStartProbe.class);
+
+  /** Prefix of the line containing the measurements. */
+  private static final String PREFIX = "COLD_START\t";
+
+  // -- ColdStartProbe API methods --
+
+  /**
+   * Opens the given dataset in a new JVM and returns the measured
+   * milliseconds, indexed by metric name: cold_jvm_ms (JVM start up to
+   * main), cold_setid_ms, cold_first_plane_ms and cold_total_ms (process
+   * start to exit). Returns an empty map if the probe failed.
+   */
+  public static Map<String, Double> measure(String id) {
+    Map<String, Double> metrics = new LinkedHashMap<String, Double>();
+    String java = System.getProperty("java.home") + File.separator + "bin" +
+      File.separator + "java";
+    ProcessBuilder builder = new ProcessBuilder(java,
+      "-Xmx" + (Runtime.getRuntime().maxMemory() >> 20) + "m",
+      "-cp", System.getProperty("java.class.path"),
+      ColdStartProbe.class.getName(), id);
+    builder.redirectErrorStream(true);
+    try {
+      long start = System.nanoTime();
+      Process process = builder.start();
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+        process.getInputStream(), Constants.ENCODING));
+      try {
+        String line = in.readLine();
+        while (line != null) {
+          if (line.startsWith(PREFIX)) {
+            for (String field : line.substring(PREFIX.length()).split("\t")) {
+              int eq = field.indexOf('=');
+              metrics.put(field.substring(0, eq),
+                Double.parseDouble(field.substring(eq + 1)));
+            }
+          }
+          else {
+            LOGGER.debug(line);
+          }
+          line = in.readLine();
+        }
+      }
+      finally {
+        in.close();
+      }
+      int exitValue = process.waitFor();
+      if (exitValue != 0) {
+        LOGGER.warn("Cold start probe for {} exited with {}", id, exitValue);
+        metrics.clear();
+      }
+      else {
+        metrics.put("cold_total_ms", (System.nanoTime() - start) / 1000000.0);
+      }
+    }
+    catch (IOException e) {
+      LOGGER.warn("Could not run cold start probe for {}", id, e);
+      metrics.clear();
+    }
+    catch (InterruptedException e) {
+      LOGGER.warn("Interrupted while running cold start probe", e);
+      Thread.currentThread().interrupt();
+      metrics.clear();
+    }
+    return metrics;
+  }
+
+  // -- Main method --
+
+  public static void main(String[] args) throws Exception {
+    long jvmTime = System.currentTimeMillis() -
+      ManagementFactory.getRuntimeMXBean().getStartTime();
+    ImageReader reader = new ImageReader();
+    try {
+      long t0 = System.nanoTime();
+      reader.setId(args[0]);
+      long t1 = System.nanoTime();
+      reader.openBytes(0);
+      long t2 = System.nanoTime();
+      System.out.println(PREFIX + "cold_jvm_ms=" + jvmTime +
+        "\tcold_setid_ms=" + (t1 - t0) / 1000000.0 +
+        "\tcold_first_plane_ms=" + (t2 - t1) / 1000000.0);
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Measures how reading a dataset is affected by storing it in a zip, gzip
+ * or bzip2 container. The compressed copies are written in-process to a
+ * temporary directory; type detection, setId, a full pass over the planes
+ * of the first series and a number of random tile reads are then timed for
+ * the original file and each copy.
+ *
+ * The compressed streams cannot be read at arbitrary offsets, so random
+ * tile reads are the most affected; the ratio of each container's mean tile
+ * time to the original's is logged as its random access penalty.
+ * Only single-file datasets can be compressed.
+ */
+public class CompressedInputTest {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(CompressedInputTest.class);
+
+  /** Default number of random tiles read from each variant. */
+  private static final int DEFAULT_TILES = 32;
+
+  // -- Fields --
+
+  private String id;
+
+  /** Number of random tiles read from each variant. */
+  private int tiles;
+
+  // -- Setup methods --
+
+  @Parameters({"id"})
+  @BeforeClass
+  public void init(String id) {
+    this.id = id;
+    tiles = TestTools.getIntProperty("testng.compressed-tiles", DEFAULT_TILES);
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testCompressedInput() throws Exception {
+    ImageReader reader = new ImageReader();
+    try {
+      reader.setId(id);
+      if (reader.getUsedFiles().length != 1) {
+        throw new SkipException("Only single files can be compressed");
+      }
+    }
+    finally {
+      reader.close();
+    }
+
+    File dir = new File(System.getProperty("java.io.tmpdir"),
+      UUID.randomUUID().toString() + ".compressed");
+    dir.mkdir();
+    try {
+      Map<String, String> variants = createVariants(new File(id), dir);
+      report(new File(id).getName(), measureAll(variants, tiles));
+    }
+    finally {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          f.delete();
+        }
+      }
+      dir.delete();
+    }
+  }
+
+  // -- Static utility methods --
+
+  /**
+   * Writes zip, gz and bz2 copies of the given file to the given directory.
+   * Returns the paths of the original file and each copy, by variant name.
+   */
+  public static Map<String, String> createVariants(File source, File dir)
+    throws IOException
+  {
+    Map<String, String> variants = new LinkedHashMap<String, String>();
+    variants.put("plain", source.getAbsolutePath());
+    String name = source.getName();
+
+    File zip = new File(dir, name + ".zip");
+    ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      zipOut.putNextEntry(new ZipEntry(name));
+      copy(source, zipOut);
+      zipOut.closeEntry();
+    }
+    finally {
+      zipOut.close();
+    }
+    variants.put("zip", zip.getAbsolutePath());
+
+    File gz = new File(dir, name + ".gz");
+    OutputStream gzOut = new GZIPOutputStream(new FileOutputStream(gz));
+    try {
+      copy(source, gzOut);
+    }
+    finally {
+      gzOut.close();
+    }
+    variants.put("gz", gz.getAbsolutePath());
+
+    File bz2 = new File(dir, name + ".bz2");
+    OutputStream bz2Out =
+      new BZip2CompressorOutputStream(new FileOutputStream(bz2));
+    try {
+      copy(source, bz2Out);
+    }
+    finally {
+      bz2Out.close();
+    }
+    variants.put("bz2", bz2.getAbsolutePath());
+
+    return variants;
+  }
+
+  /**
+   * Measures each of the given variants; see {@link #measure(String, int)}.
+   * Every variant is first read once untimed, so that the variant measured
+   * first does not alone pay for a cold file cache and for class loading
+   * and JIT compilation, which would understate the other variants'
+   * penalties.
+   */
+  public static Map<String, Timings> measureAll(Map<String, String> variants,
+    int tiles) throws FormatException, IOException
+  {
+    for (String file : variants.values()) {
+      measure(file, tiles);
+    }
+    Map<String, Timings> results = new LinkedHashMap<String, Timings>();
+    for (Map.Entry<String, String> variant : variants.entrySet()) {
+      results.put(variant.getKey(), measure(variant.getValue(), tiles));
+    }
+    return results;
+  }
+
+  /**
+   * Times type detection, setId, a pass over the planes of the first series
+   * (if they fit in memory) and the given number of random tile reads.
+   */
+  public static Timings measure(String file, int tiles)
+    throws FormatException, IOException
+  {
+    Timings timings = new Timings();
+    ImageReader reader = new ImageReader();
+    try {
+      long start = System.nanoTime();
+      reader.isThisType(file);
+      timings.detectMs = (System.nanoTime() - start) / 1000000.0;
+
+      start = System.nanoTime();
+      reader.setId(file);
+      timings.setIdMs = (System.nanoTime() - start) / 1000000.0;
+
+      reader.setSeries(0);
+      int imageCount = reader.getImageCount();
+      if (TestTools.canFitInMemory(FormatTools.getPlaneSize(reader))) {
+        byte[] plane = new byte[FormatTools.getPlaneSize(reader)];
+        start = System.nanoTime();
+        for (int i=0; i<imageCount; i++) {
+          reader.openBytes(i, plane);
+        }
+        timings.planeMs =
+          (System.nanoTime() - start) / 1000000.0 / imageCount;
+      }
+
+      int sizeX = reader.getSizeX();
+      int sizeY = reader.getSizeY();
+      int tileWidth = Math.min(reader.getOptimalTileWidth(), sizeX);
+      int tileHeight = Math.min(reader.getOptimalTileHeight(), sizeY);
+      int tilesWide = (sizeX + tileWidth - 1) / tileWidth;
+      int tilesHigh = (sizeY + tileHeight - 1) / tileHeight;
+      byte[] tile =
+        new byte[FormatTools.getPlaneSize(reader, tileWidth, tileHeight)];
+      // the same tiles are read from every variant
+      Random random = new Random(1234);
+      start = System.nanoTime();
+      for (int i=0; i<tiles; i++) {
+        int no = random.nextInt(imageCount);
+        int x = random.nextInt(tilesWide) * tileWidth;
+        int y = random.nextInt(tilesHigh) * tileHeight;
+        reader.openBytes(no, tile, x, y, Math.min(tileWidth, sizeX - x),
+          Math.min(tileHeight, sizeY - y));
+      }
+      if (tiles > 0) {
+        timings.tileMs = (System.nanoTime() - start) / 1000000.0 / tiles;
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return timings;
+  }
+
+  /**
+   * Logs the timings for each variant, with the penalties relative to the
+   * plain variant.
+   */
+  public static void report(String name, Map<String, Timings> results) {
+    Timings plain = results.get("plain");
+    LOGGER.info("{}: variant\tdetect_ms\tsetid_ms\tplane_ms\ttile_ms\t" +
+      "plane_penalty\ttile_penalty", name);
+    for (Map.Entry<String, Timings> entry : results.entrySet()) {
+      Timings t = entry.getValue();
+      LOGGER.info("{}: {}\t{}\t{}\t{}\t{}\t{}\t{}", new Object[] {name,
+        entry.getKey(), format(t.detectMs), format(t.setIdMs),
+        format(t.planeMs), format(t.tileMs),
+        format(penalty(t.planeMs, plain.planeMs)),
+        format(penalty(t.tileMs, plain.tileMs))});
+    }
+  }
+
+  // -- Helper methods --
+
+  private static void copy(File source, OutputStream out) throws IOException {
+    InputStream in = new FileInputStream(source);
+    try {
+      byte[] buf = new byte[65536];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        out.write(buf, 0, n);
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static double penalty(double value, double plain) {
+    return value < 0 || plain <= 0 ? -1 : value / plain;
+  }
+
+  private static String format(double value) {
+    return value < 0 ? "n/a" : String.format(Locale.ENGLISH, "%.2f", value);
+  }
+
+  // -- Helper classes --
+
+  /** Timings for one variant, in milliseconds; -1 if not measured. */
+  public static class Timings {
+    public double detectMs = -1;
+    public double setIdMs = -1;
+    public double planeMs = -1;
+    public double tileMs = -1;
+  }
+
+}
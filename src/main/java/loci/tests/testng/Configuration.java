@@ -65,6 +65,9 @@ public class Configuration {
 
   private static final String ACCESS_TIME = "access_ms";
   private static final String MEMORY = "mem_mb";
+  private static final String PEAK_MEMORY = "peak_mem_mb";
+  private static final String CPU_TIME = "cpu_ms";
+  private static final String ALLOCATED_MEMORY = "alloc_mb";
   private static final String TEST = "test";
   private static final String HAS_VALID_XML = "hasValidXML";
   private static final String READER = "reader";
@@ -142,9 +145,31 @@ public class Configuration {
   }
 
   public Configuration(IFormatReader reader, String configFile) {
+    this(reader, configFile, -1);
+  }
+
+  /**
+   * Creates a configuration from an initialized reader, including the heap
+   * in MB allocated while initializing it (or -1 if unknown).
+   */
+  public Configuration(IFormatReader reader, String configFile,
+    int peakMemory)
+  {
     this.dataFile = reader.getCurrentFile();
     this.configFile = configFile;
-    populateINI(reader);
+    populateINI(reader, peakMemory);
+  }
+
+  /**
+   * Creates a copy of the given configuration with its own series selection.
+   * The parsed tables are shared, so copies are cheap and may be used
+   * concurrently as long as none of them is modified.
+   */
+  public Configuration(Configuration config) {
+    this.dataFile = config.dataFile;
+    this.configFile = config.configFile;
+    this.ini = config.ini;
+    this.globalTable = config.globalTable;
   }
 
   // -- Configuration API methods --
@@ -167,6 +192,38 @@ public class Configuration {
     return Integer.parseInt(memory);
   }
 
+  /**
+   * Returns the CPU time in ms used by the thread that read the first plane,
+   * or -1 if not configured.  Unlike {@link #getAccessTimeMillis()}, this
+   * does not include time spent waiting for I/O.
+   */
+  public long getCpuTimeMillis() {
+    String millis = globalTable.get(CPU_TIME);
+    if (millis == null) return -1;
+    return Long.parseLong(millis);
+  }
+
+  /**
+   * Returns the heap allocated in MB by the thread that read the first
+   * plane, or -1 if not configured.  Unlike {@link #getMemory()}, this
+   * includes temporary buffers and excludes other threads.
+   */
+  public int getAllocatedMemory() {
+    String memory = globalTable.get(ALLOCATED_MEMORY);
+    if (memory == null) return -1;
+    return Integer.parseInt(memory);
+  }
+
+  /**
+   * Returns the heap in MB allocated by the thread that initialized the
+   * reader, an upper bound on its peak usage, or -1 if not configured.
+   */
+  public int getPeakMemory() {
+    String memory = globalTable.get(PEAK_MEMORY);
+    if (memory == null) return -1;
+    return Integer.parseInt(memory);
+  }
+
   public boolean doTest() {
     return new Boolean(globalTable.get(TEST)).booleanValue();
   }
@@ -437,7 +494,7 @@ public class Configuration {
 
   // -- Helper methods --
 
-  private void populateINI(IFormatReader reader) {
+  private void populateINI(IFormatReader reader, int peakMemory) {
     IMetadata retrieve = (IMetadata) reader.getMetadataStore();
 
     ini = new IniList();
@@ -464,12 +521,17 @@ public class Configuration {
     globalTable.put(READER, TestTools.shortClassName(r));
     globalTable.put(TEST, "true");
     globalTable.put(MEMORY, String.valueOf(TestTools.getUsedMemory()));
+    if (peakMemory >= 0) {
+      globalTable.put(PEAK_MEMORY, String.valueOf(peakMemory));
+    }
 
     long planeSize = (long) FormatTools.getPlaneSize(reader) * 3;
     boolean canOpenImages =
       planeSize > 0 && TestTools.canFitInMemory(planeSize);
 
+    ThreadUsage usage = new ThreadUsage();
     long t0 = System.currentTimeMillis();
+    usage.start();
     if (canOpenImages) {
       try {
         reader.openBytes(0);
@@ -477,9 +539,17 @@ public class Configuration {
       catch (FormatException e) { }
       catch (IOException e) { }
     }
+    usage.stop();
     long t1 = System.currentTimeMillis();
 
     globalTable.put(ACCESS_TIME, String.valueOf(t1 - t0));
+    if (usage.getCpuTime() >= 0) {
+      globalTable.put(CPU_TIME, String.valueOf(usage.getCpuTime() / 1000000));
+    }
+    if (usage.getAllocatedBytes() >= 0) {
+      globalTable.put(ALLOCATED_MEMORY,
+        String.valueOf(usage.getAllocatedBytes() >> 20));
+    }
 
     ini.add(globalTable);
 
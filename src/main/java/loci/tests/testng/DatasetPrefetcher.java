@@ -0,0 +1,268 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the files of upcoming datasets on a background thread, so that
+ * they are already in the operating system's file cache when their tests
+ * start. The data read is discarded, unless a {@link StagingCache} is set.
+ *
+ * The datasets are prefetched in the order in which they were scheduled,
+ * up to a fixed number of datasets beyond the latest one to start. Each
+ * dataset's files are taken from the used files found while removing
+ * duplicates if known, or are otherwise assumed to be all files in the
+ * dataset's directory. At most a fixed number of bytes are prefetched for
+ * datasets that have not yet started, so that prefetched data is not
+ * evicted from the cache before it is used.
+ */
+public class DatasetPrefetcher {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(DatasetPrefetcher.class);
+
+  /** Default prefetch budget, in MB. */
+  public static final int DEFAULT_BUDGET_MB = 1024;
+
+  // -- Fields --
+
+  private List<String> order;
+
+  private Map<String, Integer> index = new HashMap<String, Integer>();
+
+  private Map<String, String[]> datasetFiles;
+
+  private int ahead;
+
+  private long budget;
+
+  private ExecutorService executor =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "dataset-prefetcher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+  /** Index of the latest dataset to start. */
+  private int latest = -1;
+
+  private Set<String> started = new HashSet<String>();
+
+  private Set<Integer> scheduled = new HashSet<Integer>();
+
+  /** Bytes prefetched or queued for datasets that have not yet started. */
+  private Map<Integer, Long> pending = new HashMap<Integer, Long>();
+
+  private long pendingBytes = 0;
+
+  /** Cache to copy the files into, instead of just reading them. */
+  private StagingCache stagingCache;
+
+  // -- Constructor --
+
+  /**
+   * @param order the datasets, in the order in which they will be tested
+   * @param datasetFiles the used files of each dataset, if known
+   * @param ahead the number of datasets to prefetch
+   * @param budget the maximum number of bytes to prefetch
+   */
+  public DatasetPrefetcher(List<String> order,
+    Map<String, String[]> datasetFiles, int ahead, long budget)
+  {
+    this.order = new ArrayList<String>(order);
+    for (int i=0; i<this.order.size(); i++) {
+      index.put(this.order.get(i), i);
+    }
+    this.datasetFiles = datasetFiles;
+    this.ahead = ahead;
+    this.budget = budget;
+  }
+
+  // -- DatasetPrefetcher API methods --
+
+  /**
+   * Copies upcoming datasets into the given cache, instead of just reading
+   * them. Only datasets whose used files are known are staged in advance.
+   */
+  public void setStagingCache(StagingCache stagingCache) {
+    this.stagingCache = stagingCache;
+  }
+
+  /** Starts prefetching the first datasets. */
+  public synchronized void begin() {
+    schedule();
+  }
+
+  /**
+   * Notes that the given dataset's tests are starting, and prefetches the
+   * datasets that follow it.
+   */
+  public synchronized void start(String id) {
+    Integer i = index.get(id);
+    if (i == null) {
+      return;
+    }
+    started.add(id);
+    // datasets before this one that never started (e.g. because they were
+    // not configured) will not release their bytes themselves
+    Iterator<Map.Entry<Integer, Long>> entries = pending.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Integer, Long> entry = entries.next();
+      if (entry.getKey() <= i) {
+        pendingBytes -= entry.getValue();
+        entries.remove();
+      }
+    }
+    latest = Math.max(latest, i);
+    schedule();
+  }
+
+  // -- Helper methods --
+
+  private void schedule() {
+    int last = Math.min(latest + ahead, order.size() - 1);
+    for (int i=latest + 1; i<=last; i++) {
+      if (scheduled.contains(i)) {
+        continue;
+      }
+      final String id = order.get(i);
+      if (started.contains(id)) {
+        scheduled.add(i);
+        continue;
+      }
+      final List<File> files = getFiles(id);
+      long bytes = 0;
+      for (File f : files) {
+        bytes += f.length();
+      }
+      if (bytes > budget) {
+        LOGGER.debug("Not prefetching {}: {} bytes", id, bytes);
+        scheduled.add(i);
+        continue;
+      }
+      if (pendingBytes + bytes > budget) {
+        // keep to the scheduled order; try again when a dataset starts
+        break;
+      }
+      scheduled.add(i);
+      pending.put(i, bytes);
+      pendingBytes += bytes;
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          prefetch(id, files);
+        }
+      });
+    }
+  }
+
+  /** Returns the files to prefetch for the given dataset. */
+  private List<File> getFiles(String id) {
+    List<File> files = new ArrayList<File>();
+    String[] used = datasetFiles == null ? null : datasetFiles.get(id);
+    if (used != null) {
+      for (String f : used) {
+        File file = new File(f);
+        if (file.isFile()) {
+          files.add(file);
+        }
+      }
+      return files;
+    }
+    File parent = new File(id).getAbsoluteFile().getParentFile();
+    File[] siblings = parent == null ? null : parent.listFiles();
+    if (siblings != null) {
+      for (File file : siblings) {
+        if (file.isFile() && !file.isHidden()) {
+          files.add(file);
+        }
+      }
+    }
+    return files;
+  }
+
+  private void prefetch(String id, List<File> files) {
+    if (stagingCache != null) {
+      String[] used = datasetFiles == null ? null : datasetFiles.get(id);
+      if (used != null) {
+        stagingCache.stage(id, used);
+      }
+      return;
+    }
+    long start = System.currentTimeMillis();
+    long bytes = 0;
+    byte[] buf = new byte[1024 * 1024];
+    for (File file : files) {
+      synchronized (this) {
+        if (started.contains(id)) {
+          // too late to help
+          break;
+        }
+      }
+      try {
+        InputStream in = new FileInputStream(file);
+        try {
+          int n;
+          while ((n = in.read(buf)) > 0) {
+            bytes += n;
+          }
+        }
+        finally {
+          in.close();
+        }
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not prefetch {}", file, e);
+      }
+    }
+    LOGGER.debug("Prefetched {} bytes for {} in {} ms",
+      new Object[] {bytes, id, System.currentTimeMillis() - start});
+  }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import loci.common.Constants;
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the cumulative time and bytes read by
+ * {@link IFormatReader#isThisType(String)} for each reader class, and writes
+ * a report ranking the readers by total detection time.
+ *
+ * Profiling is enabled by setting testng.detection-profile to the path of
+ * the report. Detection done while scanning for files and in
+ * {@link FormatReaderTest#testIsThisType()} is then recorded, and the
+ * report is rewritten as each dataset completes.
+ */
+public class DetectionProfiler {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(DetectionProfiler.class);
+
+  // -- Static fields --
+
+  private static DetectionProfiler profiler;
+
+  private static boolean initialized = false;
+
+  // -- Fields --
+
+  private File reportFile;
+
+  private Map<String, ReaderStats> stats = new HashMap<String, ReaderStats>();
+
+  // -- Constructor --
+
+  public DetectionProfiler(String reportFile) {
+    this.reportFile = new File(reportFile);
+  }
+
+  // -- Static utility methods --
+
+  /**
+   * Returns the profiler configured by testng.detection-profile,
+   * or null if detection is not being profiled.
+   */
+  public static synchronized DetectionProfiler getProfiler() {
+    if (!initialized) {
+      String report = TestTools.getProperty("testng.detection-profile");
+      if (report != null && !report.isEmpty()) {
+        LOGGER.info("testng.detection-profile = {}", report);
+        profiler = new DetectionProfiler(report);
+      }
+      initialized = true;
+    }
+    return profiler;
+  }
+
+  // -- DetectionProfiler API methods --
+
+  /**
+   * Calls isThisType on the given reader, recording the time taken and the
+   * number of bytes read.
+   */
+  public boolean isThisType(IFormatReader reader, String file) {
+    AccountingHandle handle = mapFile(file);
+    try {
+      return isThisType(reader, file, handle);
+    }
+    finally {
+      unmapFile(file, handle);
+    }
+  }
+
+  /**
+   * Equivalent to {@link ImageReader#isThisType(String)}, but recording the
+   * time taken and bytes read by each reader that is tried.
+   */
+  public boolean isThisType(ImageReader reader, String file) {
+    AccountingHandle handle = mapFile(file);
+    try {
+      for (IFormatReader r : reader.getReaders()) {
+        if (isThisType(r, file, handle)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    finally {
+      unmapFile(file, handle);
+    }
+  }
+
+  /**
+   * Writes the report, with one tab-separated line per reader
+   * ordered by decreasing total time.
+   */
+  public void writeReport() {
+    List<ReaderStats> sorted;
+    double totalTime = 0;
+    synchronized (stats) {
+      sorted = new ArrayList<ReaderStats>();
+      for (ReaderStats s : stats.values()) {
+        sorted.add(s.copy());
+        totalTime += s.nanos;
+      }
+    }
+    Collections.sort(sorted, new Comparator<ReaderStats>() {
+      @Override
+      public int compare(ReaderStats a, ReaderStats b) {
+        return Long.valueOf(b.nanos).compareTo(a.nanos);
+      }
+    });
+
+    PrintWriter out = null;
+    try {
+      out = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(reportFile), Constants.ENCODING));
+      out.println("reader\tcalls\taccepted\ttotal_ms\tmean_us\t" +
+        "percent_time\tbytes_read\treads");
+      for (ReaderStats s : sorted) {
+        out.println(String.format(Locale.ENGLISH,
+          "%s\t%d\t%d\t%.3f\t%.1f\t%.2f\t%d\t%d", s.reader, s.calls,
+          s.accepted, s.nanos / 1000000.0,
+          s.calls == 0 ? 0 : s.nanos / 1000.0 / s.calls,
+          totalTime == 0 ? 0 : 100 * s.nanos / totalTime,
+          s.bytesRead, s.reads));
+      }
+    }
+    catch (IOException e) {
+      LOGGER.warn("Could not write detection profile {}", reportFile, e);
+    }
+    finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  private boolean isThisType(IFormatReader reader, String file,
+    AccountingHandle handle)
+  {
+    long bytes = handle == null ? 0 : handle.getBytesRead();
+    long reads = handle == null ? 0 : handle.getReadCount();
+    long start = System.nanoTime();
+    boolean result = reader.isThisType(file);
+    long elapsed = System.nanoTime() - start;
+
+    String name = TestTools.shortClassName(reader);
+    synchronized (stats) {
+      ReaderStats s = stats.get(name);
+      if (s == null) {
+        s = new ReaderStats(name);
+        stats.put(name, s);
+      }
+      s.calls++;
+      s.nanos += elapsed;
+      if (result) s.accepted++;
+      if (handle != null) {
+        s.bytesRead += handle.getBytesRead() - bytes;
+        s.reads += handle.getReadCount() - reads;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Maps the given file to a handle that counts the bytes read.
+   * The mapping only applies to the current thread. Returns null if the
+   * file is already mapped or cannot be opened.
+   */
+  private AccountingHandle mapFile(String file) {
+    if (Location.getMappedFile(file) != null ||
+      !file.equals(Location.getMappedId(file)))
+    {
+      return null;
+    }
+    try {
+      if (!new File(file).isFile()) {
+        return null;
+      }
+      IRandomAccess handle = Location.getHandle(file);
+      AccountingHandle accounting = new AccountingHandle(handle);
+      Location.mapFile(file, accounting);
+      return accounting;
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not open {}", file, e);
+      return null;
+    }
+  }
+
+  private void unmapFile(String file, AccountingHandle handle) {
+    if (handle == null) {
+      return;
+    }
+    Location.mapFile(file, null);
+    try {
+      handle.close();
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not close {}", file, e);
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Cumulative detection statistics for a single reader class. */
+  private static class ReaderStats {
+    String reader;
+    long calls = 0;
+    long accepted = 0;
+    long nanos = 0;
+    long bytesRead = 0;
+    long reads = 0;
+
+    ReaderStats(String reader) {
+      this.reader = reader;
+    }
+
+    ReaderStats copy() {
+      ReaderStats s = new ReaderStats(reader);
+      s.calls = calls;
+      s.accepted = accepted;
+      s.nanos = nanos;
+      s.bytesRead = bytesRead;
+      s.reads = reads;
+      return s;
+    }
+  }
+
+}
@@ -31,10 +31,16 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import loci.common.Constants;
@@ -71,9 +77,12 @@ import ome.units.UNITS;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.testng.ITestResult;
 import org.testng.SkipException;
 import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 /**
@@ -101,6 +110,24 @@ public class FormatReaderTest {
   /** Configuration tree structure containing dataset metadata. */
   public static ConfigurationTree configTree;
 
+  /** Journal of completed datasets, if one was requested. */
+  public static ResultsJournal journal;
+
+  /** Performance measurements from previous runs, if requested. */
+  public static PerformanceHistory performanceHistory;
+
+  /**
+   * Used files for each dataset, found while removing duplicates; set when
+   * testing in memory, with read-ahead or with staging.
+   */
+  public static Map<String, String[]> datasetFiles;
+
+  /** Prefetcher for upcoming datasets, if requested. */
+  public static DatasetPrefetcher prefetcher;
+
+  /** Local copies of datasets on network storage, if requested. */
+  public static StagingCache stagingCache;
+
   /** List of files to skip. */
   private static List<String> skipFiles = new LinkedList<String>();
 
@@ -125,8 +152,51 @@ public class FormatReaderTest {
 
   private boolean inMemory = false;
 
+  /**
+   * Whether to create the reader named in the configuration directly,
+   * instead of detecting the format with an ImageReader.
+   */
+  private boolean configReader =
+    Boolean.parseBoolean(TestTools.getProperty("testng.config-reader"));
+
+  /**
+   * Whether testPerformance should also measure opening the dataset
+   * in a newly started JVM.
+   */
+  private boolean coldStart =
+    Boolean.parseBoolean(TestTools.getProperty("testng.cold-start"));
+
+  /**
+   * Whether testPerformance should also count the bytes read, read calls
+   * and seeks made on the dataset's used files.
+   */
+  private boolean ioAccounting =
+    Boolean.parseBoolean(TestTools.getProperty("testng.io-accounting"));
+
+  /**
+   * Block size in bytes for reading ahead when the dataset's files are read
+   * sequentially, or 0 to read them directly.
+   */
+  private int readAhead = TestTools.getIntProperty("testng.read-ahead", 0);
+
+  /** Number of blocks to read ahead. */
+  private int readAheadBlocks = TestTools.getIntProperty(
+    "testng.read-ahead-blocks", ReadAheadHandle.DEFAULT_BLOCKS);
+
+  /** Read-ahead handles mapped over the dataset's files. */
+  private List<ReadAheadHandle> readAheadHandles = null;
+
   private OMEXMLService omexmlService = null;
 
+  /** Resources used by the most recent call to setId. */
+  private ThreadUsage setIdUsage = null;
+
+  /** Peak heap usage in MB during the most recent call to setId. */
+  private int setIdPeakMemory = -1;
+
+  /** Short class name of the reader used for the dataset, once known. */
+  private String readerName = null;
+
   // -- Constructor --
 
   public FormatReaderTest(String filename, float multiplier, boolean inMemory) {
@@ -161,6 +231,62 @@ public class FormatReaderTest {
     Location.setIdMap(idMap);
   }
 
+  @BeforeMethod(alwaysRun = true)
+  public void startSampling(Method method) {
+    SamplingProfiler profiler = SamplingProfiler.getProfiler();
+    if (profiler != null) {
+      profiler.enter(id, method.getName(), readerName);
+    }
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void recordResult(ITestResult result) {
+    SamplingProfiler profiler = SamplingProfiler.getProfiler();
+    if (profiler != null) {
+      profiler.exit();
+    }
+    if (journal != null) {
+      journal.record(id, result.getMethod().getMethodName(),
+        result.getStatus());
+    }
+  }
+
+  @AfterClass(alwaysRun = true)
+  public void recordCompletion() {
+    if (journal != null) {
+      journal.complete(id);
+    }
+    DetectionProfiler profiler = DetectionProfiler.getProfiler();
+    if (profiler != null) {
+      profiler.writeReport();
+    }
+    MemoizerBenchmark memoBenchmark = MemoizerBenchmark.getBenchmark();
+    if (memoBenchmark != null) {
+      memoBenchmark.writeReport();
+    }
+    SamplingProfiler sampler = SamplingProfiler.getProfiler();
+    if (sampler != null) {
+      sampler.writeReport();
+    }
+    if (stagingCache != null) {
+      stagingCache.release(id);
+    }
+    if (readAheadHandles != null) {
+      for (ReadAheadHandle handle : readAheadHandles) {
+        LOGGER.debug("{}: read ahead {} blocks, {} reads from prefetched " +
+          "blocks", new Object[] {id, handle.getPrefetchedBlocks(),
+          handle.getHitBlocks()});
+        try {
+          handle.close();
+        }
+        catch (IOException e) {
+          LOGGER.debug("", e);
+        }
+      }
+      readAheadHandles = null;
+    }
+  }
+
   // -- Tests --
 
   @Test(groups = {"all", "pixels", "automated"})
@@ -575,7 +701,22 @@ public class FormatReaderTest {
     String format = config.getReader();
 
     IFormatReader r = reader;
-    if (r instanceof ImageReader) {
+    if (configReader) {
+      // the reader was created from the configuration, so detect the
+      // format separately
+      try {
+        r = new ImageReader().getReader(reader.getCurrentFile());
+      }
+      catch (FormatException e) {
+        LOGGER.warn("", e);
+        result(testName, false, e.getMessage());
+      }
+      catch (IOException e) {
+        LOGGER.warn("", e);
+        result(testName, false, e.getMessage());
+      }
+    }
+    else if (r instanceof ImageReader) {
       r = ((ImageReader) r).getReader();
     }
     else if (r instanceof ReaderWrapper) {
@@ -1454,65 +1595,171 @@ public class FormatReaderTest {
     try {
       int properMem = config.getMemory();
       double properTime = config.getAccessTimeMillis();
-      if (properMem <= 0 || properTime <= 0) {
+      double properCpu = config.getCpuTimeMillis();
+      int properAlloc = config.getAllocatedMemory();
+      boolean configured = (properMem > 0 || properAlloc >= 0) &&
+        (properTime > 0 || properCpu >= 0);
+      if (!configured && performanceHistory == null) {
         success = true;
         msg = "no configuration";
       }
       else {
-        Runtime r = Runtime.getRuntime();
-        System.gc(); // clean memory before we start
-        Thread.sleep(1000);
-        System.gc(); // clean memory before we start
-        long m1 = r.totalMemory() - r.freeMemory();
-        long t1 = System.currentTimeMillis();
+        ThreadUsage firstPlane = null;
+
+        // configurations written before alloc_mb was added only have mem_mb,
+        // the heap in use after setId; this thread's allocation per plane
+        // is checked against it until the configuration is regenerated
+        int expectedAlloc = properAlloc >= 0 ? properAlloc : properMem;
+        String allocKey = properAlloc >= 0 ? "alloc_mb" : "mem_mb";
+        if (properAlloc < 0 && properMem > 0) {
+          LOGGER.debug("{}: no alloc_mb configured; checking against mem_mb " +
+            "until the configuration is regenerated", id);
+        }
+
+        // the first pass includes class loading and JIT compilation; with
+        // warmup iterations, only the later passes are measured
+        int warmup = TestTools.getWarmupIterations();
+        int measured = TestTools.getMeasuredIterations();
+        ThreadUsage[] passes = new ThreadUsage[measured];
         int totalPlanes = 0;
-        int seriesCount = reader.getSeriesCount();
-        for (int i=0; i<seriesCount; i++) {
-          reader.setSeries(i);
-          int imageCount = reader.getImageCount();
-          totalPlanes += imageCount;
-          int planeSize = FormatTools.getPlaneSize(reader);
-          if (planeSize < 0) {
-            continue;
-          }
-          byte[] buf = new byte[planeSize];
-          for (int j=0; j<imageCount; j++) {
-            try {
-              reader.openBytes(j, buf);
-            }
-            catch (FormatException e) {
-              LOGGER.info("", e);
-            }
-            catch (IOException e) {
-              LOGGER.info("", e);
+        for (int pass=0; pass<warmup + measured; pass++) {
+          // measure only this thread, so that datasets tested in parallel
+          // do not affect each other's results
+          ThreadUsage usage = new ThreadUsage();
+          usage.start();
+          totalPlanes = 0;
+          int seriesCount = reader.getSeriesCount();
+          for (int i=0; i<seriesCount; i++) {
+            reader.setSeries(i);
+            int imageCount = reader.getImageCount();
+            totalPlanes += imageCount;
+            int planeSize = FormatTools.getPlaneSize(reader);
+            if (planeSize < 0) {
+              continue;
             }
-            catch (Throwable e) {
-              if (TestTools.isOutOfMemory(e)) {
-                result(testName, true, "Image too large");
-                return;
+            byte[] buf = new byte[planeSize];
+            for (int j=0; j<imageCount; j++) {
+              try {
+                if (firstPlane == null) {
+                  firstPlane = new ThreadUsage();
+                  firstPlane.start();
+                  reader.openBytes(j, buf);
+                  firstPlane.stop();
+                }
+                else {
+                  reader.openBytes(j, buf);
+                }
+              }
+              catch (FormatException e) {
+                LOGGER.info("", e);
+              }
+              catch (IOException e) {
+                LOGGER.info("", e);
+              }
+              catch (Throwable e) {
+                if (TestTools.isOutOfMemory(e)) {
+                  result(testName, true, "Image too large");
+                  return;
+                }
+                throw e;
               }
-              throw e;
             }
           }
+          usage.stop();
+          if (pass >= warmup) {
+            passes[pass - warmup] = usage;
+          }
+        }
+
+        // use the median measured pass as the steady state
+        Arrays.sort(passes, new Comparator<ThreadUsage>() {
+          @Override
+          public int compare(ThreadUsage a, ThreadUsage b) {
+            return Double.compare(a.getTimeMillis(), b.getTimeMillis());
+          }
+        });
+        ThreadUsage usage = passes[passes.length / 2];
+        totalPlanes = Math.max(totalPlanes, 1);
+        double wallTime = usage.getWallTime() / 1000000.0 / totalPlanes;
+        double actualTime = wallTime;
+        if (usage.getCpuTime() >= 0) {
+          actualTime = usage.getCpuTime() / 1000000.0 / totalPlanes;
+        }
+        long allocated = usage.getAllocatedBytes();
+        int actualMem = allocated < 0 ? -1 :
+          (int) ((allocated / totalPlanes) >> 20);
+        LOGGER.debug("{}: {} ms CPU, {} ms wall, {} MB allocated per plane",
+          new Object[] {id, actualTime, wallTime, actualMem});
+
+        if (firstPlane != null) {
+          LOGGER.debug("{}: first plane {} ms, steady state {} ms per plane",
+            new Object[] {id, firstPlane.getTimeMillis(), actualTime});
+        }
+
+        Map<String, Double> coldMetrics = null;
+        if (coldStart) {
+          coldMetrics = ColdStartProbe.measure(id);
+          LOGGER.info("{}: cold start {}", id, coldMetrics);
+        }
+
+        Map<String, Double> ioMetrics = null;
+        if (ioAccounting) {
+          ioMetrics = measureIO();
+          LOGGER.info("{}: I/O {}", id, ioMetrics);
+        }
+
+        if (performanceHistory != null) {
+          // compare against previous runs on the same class of machine
+          Map<String, Double> metrics = new LinkedHashMap<String, Double>();
+          if (setIdUsage != null) {
+            // wall time, so that slower I/O during setId is caught too
+            metrics.put("setid_ms", setIdUsage.getWallTime() / 1000000.0);
+            if (setIdUsage.getCpuTime() >= 0) {
+              metrics.put("setid_cpu_ms", setIdUsage.getCpuTime() / 1000000.0);
+            }
+          }
+          if (firstPlane != null) {
+            metrics.put("first_plane_ms", firstPlane.getTimeMillis());
+          }
+          metrics.put("full_pass_ms", usage.getTimeMillis());
+          if (coldMetrics != null) {
+            metrics.putAll(coldMetrics);
+          }
+          if (ioMetrics != null) {
+            metrics.putAll(ioMetrics);
+          }
+          if (allocated >= 0) {
+            metrics.put("alloc_mb_per_plane",
+              allocated / (double) totalPlanes / (1024 * 1024));
+          }
+          if (setIdPeakMemory >= 0) {
+            metrics.put("peak_setid_mb", (double) setIdPeakMemory);
+          }
+          msg = performanceHistory.addRun(
+            id, ResultsJournal.getBuild(), metrics);
+          success = msg == null;
         }
-        long t2 = System.currentTimeMillis();
-        System.gc();
-        Thread.sleep(1000);
-        System.gc();
-        long m2 = r.totalMemory() - r.freeMemory();
-        double actualTime = (double) (t2 - t1) / totalPlanes;
-        int actualMem = (int) ((m2 - m1) >> 20);
 
-        // check time elapsed
-        if (actualTime - timeMultiplier * properTime > 250.0) {
+        // check CPU time against cpu_ms, or else wall time against access_ms
+        else if (properCpu >= 0 && usage.getCpuTime() >= 0 &&
+          actualTime - timeMultiplier * properCpu > 250.0)
+        {
           success = false;
-          msg = "got " + actualTime + " ms, expected " + properTime + " ms";
+          msg = "got " + actualTime + " ms CPU, expected " + properCpu + " ms";
+        }
+        else if ((properCpu < 0 || usage.getCpuTime() < 0) &&
+          properTime > 0 && wallTime - timeMultiplier * properTime > 250.0)
+        {
+          success = false;
+          msg = "got " + wallTime + " ms, expected " + properTime + " ms";
         }
 
-        // check memory used
-        else if (actualMem > properMem + 20) {
+        // check memory allocated while reading each plane against alloc_mb,
+        // or else mem_mb
+        else if (expectedAlloc >= 0 && actualMem > expectedAlloc + 20) {
           success = false;
-          msg =  "used " + actualMem + " MB; expected <= " + properMem + " MB";
+          msg =  "allocated " + actualMem + " MB per plane; expected <= " +
+            expectedAlloc + " MB (" + allocKey + ")";
         }
       }
     }
@@ -1523,6 +1770,35 @@ public class FormatReaderTest {
     result(testName, success, msg);
   }
 
+  /**
+   * Checks the heap allocated while initializing the dataset, an upper
+   * bound on its transient peak; see {@link PeakMemoryMonitor}.  Unlike the
+   * memory checked by testPerformance, this includes large buffers that are
+   * collected before setId returns.  Skipped if it could not be measured.
+   */
+  @Test(groups = {"all"})
+  public void testPeakMemory() {
+    if (config == null) throw new SkipException("No config tree");
+    String testName = "testPeakMemory";
+    if (!initFile()) result(testName, false, "initFile");
+    boolean success = true;
+    String msg = null;
+    int properPeak = config.getPeakMemory();
+    if (properPeak < 0) {
+      msg = "no configuration";
+    }
+    else if (setIdPeakMemory < 0) {
+      throw new SkipException("Peak memory during setId was not measured");
+    }
+    else if (setIdPeakMemory > properPeak + 20) {
+      success = false;
+      msg = "peak of " + setIdPeakMemory + " MB during setId; expected <= " +
+        properPeak + " MB";
+    }
+    LOGGER.debug("{}: peak of {} MB during setId", id, setIdPeakMemory);
+    result(testName, success, msg);
+  }
+
   @Test(groups = {"all", "type", "automated"})
   public void testRequiredDirectories() {
     if (!initFile()) return;
@@ -1628,11 +1904,14 @@ public class FormatReaderTest {
   public void testSaneUsedFiles() {
     if (!initFile()) return;
     String file = reader.getCurrentFile();
+    if (stagingCache != null) {
+      file = stagingCache.getOriginalPath(file);
+    }
     String testName = "testSaneUsedFiles";
     boolean success = true;
     String msg = null;
     try {
-      String[] base = reader.getUsedFiles();
+      String[] base = getOriginalUsedFiles(reader);
       if (base.length == 1) {
         if (!base[0].equals(file)) success = false;
       }
@@ -1740,7 +2019,7 @@ public class FormatReaderTest {
 
           r.setId(base[i]);
 
-          String[] comp = r.getUsedFiles();
+          String[] comp = getOriginalUsedFiles(r);
 
           // If an .mdb file was initialized, then .lsm files are grouped.
           // If one of the .lsm files is initialized, though, then files
@@ -2191,16 +2470,33 @@ public class FormatReaderTest {
         }
         else break;
       }
+      ImageReader ir = null;
       if (r instanceof ImageReader) {
-        ImageReader ir = (ImageReader) r;
+        ir = (ImageReader) r;
         r = ir.getReader();
+      }
+      else if (configReader) {
+        // the reader was created from the configuration, so compare
+        // against a complete set of readers
+        ir = new ImageReader();
+        for (IFormatReader candidate : ir.getReaders()) {
+          if (candidate.getClass().equals(r.getClass())) {
+            r = candidate;
+            break;
+          }
+        }
+      }
+      if (ir != null) {
         IFormatReader[] readers = ir.getReaders();
         String[] used = reader.getUsedFiles();
+        DetectionProfiler profiler = DetectionProfiler.getProfiler();
         for (int i=0; i<used.length && success; i++) {
           // for each used file, make sure that one reader,
           // and only one reader, identifies the dataset as its own
           for (int j=0; j<readers.length; j++) {
-            boolean result = readers[j].isThisType(used[i]);
+            boolean result = profiler == null ?
+              readers[j].isThisType(used[i]) :
+              profiler.isThisType(readers[j], used[i]);
 
             // TIFF reader is allowed to redundantly green-light files
             if (result && readers[j] instanceof TiffDelegateReader) continue;
@@ -2503,9 +2799,35 @@ public class FormatReaderTest {
     }
   }
 
+  /**
+   * Compares the cost of writing and loading a memo file with parsing the
+   * dataset; see {@link MemoizerBenchmark}.
+   */
+  @Test(groups = {"all"})
+  public void testMemoizerCost() {
+    MemoizerBenchmark benchmark = MemoizerBenchmark.getBenchmark();
+    if (benchmark == null) {
+      throw new SkipException("Memoizer benchmark not enabled");
+    }
+    String testName = "testMemoizerCost";
+    if (!initFile()) result(testName, false, "initFile");
+    try {
+      String msg = benchmark.measure(reader.getCurrentFile());
+      result(testName, msg == null, msg);
+    }
+    catch (Throwable t) {
+      if (TestTools.isOutOfMemory(t)) {
+        result(testName, true, "Image too large");
+        return;
+      }
+      LOGGER.warn("", t);
+      result(testName, false, t.getMessage());
+    }
+  }
+
   @Test(groups = {"config"})
   public void writeConfigFile() {
-    setupReader();
+    setupReader(false);
     if (!initFile(false)) return;
     String file = reader.getCurrentFile();
     try {
@@ -2521,7 +2843,8 @@ public class FormatReaderTest {
       }
       File f = new File(parent, ".bioformats");
       LOGGER.info("Generating configuration: {}", f);
-      Configuration newConfig = new Configuration(reader, f.getAbsolutePath());
+      Configuration newConfig =
+        new Configuration(reader, f.getAbsolutePath(), setIdPeakMemory);
       newConfig.saveToFile();
       reader.close();
     }
@@ -2559,9 +2882,25 @@ public class FormatReaderTest {
 
   /** Sets up the current IFormatReader. */
   private void setupReader() {
-    // Remove external SlideBook6Reader class for testing purposes
-    ImageReader ir = new ImageReader();
-    reader = new BufferedImageReader(new FileStitcher(new Memoizer(ir, Memoizer.DEFAULT_MINIMUM_ELAPSED, new File(""))));
+    setupReader(configReader);
+  }
+
+  /**
+   * Sets up the current IFormatReader.
+   *
+   * @param useConfig true if the reader named in the configuration should be
+   *   created directly, instead of probing every reader on each setId
+   */
+  private void setupReader(boolean useConfig) {
+    IFormatReader base = null;
+    if (useConfig && config != null) {
+      base = createConfiguredReader();
+    }
+    if (base == null) {
+      // Remove external SlideBook6Reader class for testing purposes
+      base = new ImageReader();
+    }
+    reader = new BufferedImageReader(new FileStitcher(new Memoizer(base, Memoizer.DEFAULT_MINIMUM_ELAPSED, new File(""))));
     reader.setMetadataOptions(new DefaultMetadataOptions(MetadataLevel.NO_OVERLAYS));
     reader.setNormalized(true);
     reader.setOriginalMetadataPopulated(false);
@@ -2576,11 +2915,126 @@ public class FormatReaderTest {
     reader.setMetadataStore(store);
   }
 
+  /**
+   * Returns the files used by the given reader, with the local copies made
+   * by the staging cache replaced by the original file names.
+   */
+  private static String[] getOriginalUsedFiles(IFormatReader r) {
+    String[] used = r.getUsedFiles().clone();
+    if (stagingCache != null) {
+      for (int i=0; i<used.length; i++) {
+        used[i] = stagingCache.getOriginalPath(used[i]);
+      }
+    }
+    return used;
+  }
+
+  /**
+   * Creates an instance of the reader named in the configuration,
+   * or returns null if it is not available.
+   */
+  private IFormatReader createConfiguredReader() {
+    IFormatReader configured = TestTools.createReader(config.getReader());
+    if (configured == null) {
+      LOGGER.info("Falling back to ImageReader for {}", id);
+    }
+    return configured;
+  }
+
+  /**
+   * Opens the dataset with a new reader, reads every plane that fits in
+   * memory and closes the reader, counting the I/O performed on each used
+   * file during setId, plane reads and close.
+   */
+  private Map<String, Double> measureIO() {
+    IOAccounting io = new IOAccounting(reader.getUsedFiles());
+    ImageReader r = new ImageReader();
+    try {
+      io.startPhase("setid");
+      r.setId(id);
+      io.startPhase("planes");
+      for (int i=0; i<r.getSeriesCount(); i++) {
+        r.setSeries(i);
+        long planeSize = (long) FormatTools.getPlaneSize(r);
+        if (planeSize < 0 || !TestTools.canFitInMemory(planeSize)) {
+          continue;
+        }
+        byte[] buf = new byte[(int) planeSize];
+        for (int j=0; j<r.getImageCount(); j++) {
+          r.openBytes(j, buf);
+        }
+      }
+      io.startPhase("close");
+      r.close();
+      io.endPhase();
+    }
+    catch (FormatException e) {
+      LOGGER.warn("I/O accounting failed for {}", id, e);
+    }
+    catch (IOException e) {
+      LOGGER.warn("I/O accounting failed for {}", id, e);
+    }
+    finally {
+      try {
+        r.close();
+      }
+      catch (IOException e) { }
+      io.close();
+    }
+    return io.getMetrics();
+  }
+
   /** Initializes the reader and configuration tree. */
   private boolean initFile() {
     return initFile(true);
   }
 
+  /**
+   * Returns the files in this dataset, as found while removing duplicates
+   * or by a separate unmeasured setId.
+   */
+  private String[] getDatasetFiles() {
+    if (datasetFiles != null && datasetFiles.containsKey(id)) {
+      return datasetFiles.get(id);
+    }
+    FileStitcher stitcher = new FileStitcher();
+    try {
+      stitcher.setId(id);
+      return stitcher.getUsedFiles();
+    }
+    catch (FormatException e) {
+      LOGGER.debug("Could not list files in {}", id, e);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not list files in {}", id, e);
+    }
+    finally {
+      try {
+        stitcher.close();
+      }
+      catch (IOException e) { }
+    }
+    return new String[0];
+  }
+
+  /** Returns the short class name of the innermost reader. */
+  private String getReaderName() {
+    IFormatReader r = reader;
+    while (true) {
+      if (r instanceof ReaderWrapper) {
+        r = ((ReaderWrapper) r).getReader();
+      }
+      else if (r instanceof FileStitcher) {
+        r = ((FileStitcher) r).getReader();
+      }
+      else if (r instanceof ImageReader) {
+        r = ((ImageReader) r).getReader();
+      }
+      else break;
+    }
+    return TestTools.shortClassName(r);
+  }
+
   private boolean initFile(boolean removeDuplicateFiles) {
     if (skip) throw new SkipException(SKIP_MESSAGE);
 
@@ -2624,19 +3078,75 @@ public class FormatReaderTest {
       throw new RuntimeException(id + " not configured.");
     }
 
+    if (prefetcher != null) {
+      prefetcher.start(id);
+    }
+
     LOGGER.info("Initializing {}: ", id);
     try {
       boolean reallyInMemory = false;
-      if (inMemory && reader.isSingleFile(id)) {
+      if (inMemory) {
         HashMap<String, Object> idMap = Location.getIdMap();
         idMap.clear();
         Location.setIdMap(idMap);
 
-        reallyInMemory = TestTools.mapFile(id);
+        // map every file in the dataset before setId, so that the
+        // in-memory timings cover the whole dataset
+        Set<String> files = new LinkedHashSet<String>();
+        files.add(id);
+        files.addAll(Arrays.asList(getDatasetFiles()));
+        reallyInMemory =
+          TestTools.mapFiles(files.toArray(new String[files.size()]));
+      }
+      else if (readAhead > 0) {
+        HashMap<String, Object> idMap = Location.getIdMap();
+        idMap.clear();
+        Location.setIdMap(idMap);
+
+        Set<String> files = new LinkedHashSet<String>();
+        files.add(id);
+        files.addAll(Arrays.asList(getDatasetFiles()));
+        readAheadHandles = TestTools.mapReadAhead(
+          files.toArray(new String[files.size()]), readAhead, readAheadBlocks);
+      }
+      else if (stagingCache != null) {
+        HashMap<String, Object> idMap = Location.getIdMap();
+        idMap.clear();
+        Location.setIdMap(idMap);
+
+        // waits for the copies if they are still being made
+        Set<String> files = new LinkedHashSet<String>();
+        files.add(id);
+        files.addAll(Arrays.asList(getDatasetFiles()));
+        stagingCache.map(id, files.toArray(new String[files.size()]));
+      }
+      // setId usually runs in setup(), before any test method is sampled
+      SamplingProfiler profiler = SamplingProfiler.getProfiler();
+      if (profiler != null) {
+        profiler.enter(id, "setId", config == null ? null : config.getReader());
+      }
+      ThreadUsage usage = new ThreadUsage();
+      PeakMemoryMonitor peak = new PeakMemoryMonitor();
+      peak.start();
+      usage.start();
+      try {
+        reader.setId(id);
+      }
+      finally {
+        usage.stop();
+        peak.stop();
+        if (profiler != null) {
+          profiler.exit();
+        }
+      }
+      setIdUsage = usage;
+      setIdPeakMemory = peak.getPeakMB();
+      readerName = getReaderName();
+      if (profiler != null) {
+        profiler.setReader(readerName);
       }
-      reader.setId(id);
       // remove used files
-      String[] used = reader.getUsedFiles();
+      String[] used = getOriginalUsedFiles(reader);
       boolean base = false;
       for (int i=0; i<used.length; i++) {
         if (id.equals(used[i])) {
@@ -2644,7 +3154,8 @@ public class FormatReaderTest {
           continue;
         }
         skipFiles.add(used[i]);
-        if (reallyInMemory) {
+        if (reallyInMemory && Location.getMappedFile(used[i]) == null) {
+          // not found before setId
           TestTools.mapFile(used[i]);
         }
       }
@@ -162,6 +162,61 @@ public class FormatReaderTestFactory {
       configSuffix = "";
     }
 
+    // check for a journal of completed datasets
+
+    final String journalProp = "testng.journal";
+    String journalFile = getProperty(journalProp);
+    final String resumeProp = "testng.resume";
+    boolean resume = Boolean.parseBoolean(getProperty(resumeProp));
+    if (journalFile != null) {
+      LOGGER.info("{} = {}", journalProp, journalFile);
+      LOGGER.info("{} = {}", resumeProp, resume);
+      try {
+        FormatReaderTest.journal = new ResultsJournal(journalFile);
+      }
+      catch (IOException e) {
+        LOGGER.error("Could not open journal {}", journalFile, e);
+      }
+    }
+    else if (resume) {
+      LOGGER.warn("{} requires {} to be set", resumeProp, journalProp);
+    }
+
+    // check for a store of previous performance measurements
+
+    final String historyProp = "testng.performance-history";
+    String historyDir = getProperty(historyProp);
+    if (historyDir != null) {
+      String hostClass = getProperty("testng.host-class");
+      int runs = TestTools.getIntProperty("testng.history-runs",
+        PerformanceHistory.DEFAULT_RUNS);
+      try {
+        FormatReaderTest.performanceHistory =
+          new PerformanceHistory(historyDir, hostClass, runs);
+        LOGGER.info("{} = {}", historyProp,
+          FormatReaderTest.performanceHistory.getHistoryFile());
+      }
+      catch (IOException e) {
+        LOGGER.error("Could not open performance history {}", historyDir, e);
+      }
+    }
+
+    // check for a list of changed readers
+
+    final String readersProp = "testng.readers";
+    String readerList = getProperty(readersProp);
+    ReaderSelection selection = null;
+    if (readerList != null) {
+      LOGGER.info("{} = {}", readersProp, readerList);
+      try {
+        selection = new ReaderSelection(readerList);
+        LOGGER.info("Changed readers: {}", selection.getReaderNames());
+      }
+      catch (IOException e) {
+        LOGGER.error("Could not read changed readers from {}", readerList, e);
+      }
+    }
+
     // display local information
     LOGGER.info("user.language = {}", System.getProperty("user.language"));
     LOGGER.info("user.country = {}", System.getProperty("user.country"));
@@ -189,6 +244,9 @@ public class FormatReaderTestFactory {
       if (files.size() > 0) avg /= files.size();
       LOGGER.info("Scan time: {} s ({} ms/file)", time, avg);
       LOGGER.info(TestTools.DIVIDER);
+      if (DetectionProfiler.getProfiler() != null) {
+        DetectionProfiler.getProfiler().writeReport();
+      }
     }
     else {
       files.add(filename);
@@ -209,6 +267,7 @@ public class FormatReaderTestFactory {
       originalPath.put(canonicalPath, s);
     }
     Set<String> minimalFiles = new LinkedHashSet<String>();
+    Map<String, String[]> datasetFiles = new HashMap<String, String[]>();
     FileStitcher reader = new FileStitcher();
     Set<String> failingIds = new LinkedHashSet<String>();
     while (!fileSet.isEmpty()) {
@@ -232,10 +291,12 @@ public class FormatReaderTestFactory {
         auxFiles.remove(masterFile);
         minimalFiles.removeAll(auxFiles);
         minimalFiles.add(masterFile);
+        datasetFiles.put(masterFile, usedFiles);
       }
       catch (Exception e) {
         LOGGER.warn("Could not determine duplicate status for {}", file, e);
         minimalFiles.add(file);
+        datasetFiles.put(file, new String[] {file});
       }
       finally {
         fileSet.remove(file);
@@ -260,6 +321,92 @@ public class FormatReaderTestFactory {
       files.add(originalPath.get(s));
     }
 
+    Map<String, String[]> usedFiles = new HashMap<String, String[]>();
+    for (Map.Entry<String, String[]> entry : datasetFiles.entrySet()) {
+      String file = originalPath.get(entry.getKey());
+      if (file != null) {
+        usedFiles.put(file, entry.getValue());
+      }
+    }
+
+    // let in-memory and read-ahead tests map all of a dataset's files
+    // before setId
+    if (inMemory || TestTools.getIntProperty("testng.read-ahead", 0) > 0) {
+      FormatReaderTest.datasetFiles = usedFiles;
+    }
+
+    // keep only the datasets affected by the changed readers
+    if (selection != null) {
+      List<String> selected = new ArrayList<String>();
+      for (String s: minimalFiles) {
+        String file = originalPath.get(s);
+        Configuration config = null;
+        try {
+          if (FormatReaderTest.configTree != null) {
+            config = FormatReaderTest.configTree.get(file);
+          }
+        }
+        catch (IOException e) {
+          LOGGER.warn("Could not read configuration for {}", file, e);
+        }
+        if (selection.isSelected(config, datasetFiles.get(s))) {
+          selected.add(file);
+        }
+      }
+      LOGGER.info("Selected {} of {} datasets for readers {}",
+        new Object[] {selected.size(), files.size(),
+        selection.getReaderNames()});
+      files = selected;
+    }
+
+    // skip datasets completed by an earlier run of the same build
+    if (resume && FormatReaderTest.journal != null) {
+      int total = files.size();
+      List<String> remaining = new ArrayList<String>();
+      for (String file : files) {
+        if (!FormatReaderTest.journal.isCompleted(file)) {
+          remaining.add(file);
+        }
+      }
+      files = remaining;
+      LOGGER.info("Resuming: {} of {} datasets already completed",
+        total - files.size(), total);
+    }
+
+    // copy datasets to local storage before testing them
+    String staging = getProperty("testng.staging-directory");
+    boolean mapped =
+      inMemory || TestTools.getIntProperty("testng.read-ahead", 0) > 0;
+    if (staging != null && !staging.isEmpty() && mapped) {
+      LOGGER.warn("Ignoring testng.staging-directory, as datasets are " +
+        "already mapped by testng.in-memory or testng.read-ahead");
+    }
+    else if (staging != null && !staging.isEmpty()) {
+      long size = TestTools.getIntProperty("testng.staging-size",
+        StagingCache.DEFAULT_SIZE_MB) * 1024L * 1024L;
+      LOGGER.info("testng.staging-directory = {}, limit {} bytes",
+        staging, size);
+      FormatReaderTest.stagingCache = new StagingCache(new File(staging), size);
+      FormatReaderTest.datasetFiles = usedFiles;
+    }
+
+    // read the files of upcoming datasets in the background
+    int prefetch = TestTools.getIntProperty("testng.prefetch", 0);
+    if (prefetch <= 0 && FormatReaderTest.stagingCache != null) {
+      // stage the next dataset while the current one is tested
+      prefetch = 1;
+    }
+    if (prefetch > 0) {
+      long budget = TestTools.getIntProperty("testng.prefetch-budget",
+        DatasetPrefetcher.DEFAULT_BUDGET_MB) * 1024L * 1024L;
+      LOGGER.info("testng.prefetch = {}, budget {} bytes", prefetch, budget);
+      FormatReaderTest.prefetcher =
+        new DatasetPrefetcher(files, usedFiles, prefetch, budget);
+      FormatReaderTest.prefetcher.setStagingCache(
+        FormatReaderTest.stagingCache);
+      FormatReaderTest.prefetcher.begin();
+    }
+
     // create test class instances
     System.out.println("Building list of tests...");
     Object[] tests = new Object[files.size()];
@@ -27,6 +27,7 @@ package loci.tests.testng;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -46,6 +47,7 @@ import loci.formats.services.OMEXMLService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterSuite;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
@@ -75,15 +77,6 @@ public class FormatWriterTest {
   /** List of files to skip. */
   public static List skipFiles = new LinkedList();
 
-  /** Reader for input file. */
-  private static BufferedImageReader reader = new BufferedImageReader();
-
-  /** Reader for converted files. */
-  private static BufferedImageReader convertedReader =
-    new BufferedImageReader();
-
-  private static Configuration config;
-
   // -- Fields --
 
   private String id;
@@ -93,17 +86,18 @@ public class FormatWriterTest {
 
   public FormatWriterTest(String filename) {
     id = filename;
-    try {
-      reader.setId(id);
-    }
-    catch (FormatException e) { LOGGER.info("", e); }
-    catch (IOException e) { LOGGER.info("", e); }
   }
 
   // -- Data provider --
 
-  @DataProvider(name = "getWriterList")
+  /**
+   * Lists each writer and compression type that supports the input pixel
+   * type. Every row gets its own reader and output directory, so the rows
+   * are run in parallel (see data-provider-thread-count in testng-writer.xml).
+   */
+  @DataProvider(name = "getWriterList", parallel = true)
   public Object[][] getWriterList() {
+    int pixelType = getPixelType();
     IFormatWriter[] writers = new ImageWriter().getWriters();
     List tmp = new ArrayList();
     for (int i=0; i<writers.length; i++) {
@@ -121,7 +115,7 @@ public class FormatWriterTest {
         try {
           IFormatWriter w = (IFormatWriter) writers[i].getClass().newInstance();
           if (DataTools.containsValue(w.getPixelTypes(compressionTypes[q]),
-            reader.getPixelType()))
+            pixelType))
           {
             w.setCompression(compressionTypes[q]);
             tmp.add(w);
@@ -139,6 +133,18 @@ public class FormatWriterTest {
     return writersToUse;
   }
 
+  /**
+   * Lists the same writers as getWriterList if the writer benchmark is
+   * enabled, and none otherwise.
+   */
+  @DataProvider(name = "getBenchmarkWriterList", parallel = true)
+  public Object[][] getBenchmarkWriterList() {
+    if (WriterBenchmark.getBenchmark() == null) {
+      return new Object[0][];
+    }
+    return getWriterList();
+  }
+
   // -- Tests --
 
   @Test(groups = {"all"}, dataProvider = "getWriterList")
@@ -147,9 +153,11 @@ public class FormatWriterTest {
       writer.getCompression() + " testWriterConsistency";
     boolean success = true;
     String msg = null;
+    BufferedImageReader reader = new BufferedImageReader();
+    BufferedImageReader convertedReader = new BufferedImageReader();
+    File outputDir = null;
+    WriteTarget target = null;
     try {
-      reader.close();
-
       ServiceFactory factory = new ServiceFactory();
       OMEXMLService service = factory.getInstance(OMEXMLService.class);
       reader.setMetadataStore(service.createOMEXMLMetadata());
@@ -162,17 +170,28 @@ public class FormatWriterTest {
         return;
       }
 
-      config = configTree.get(id);
+      Configuration config = new Configuration(configTree.get(id));
 
       String prefix = id.substring(id.lastIndexOf(File.separator) + 1,
         id.lastIndexOf("."));
-      // prefix must be at least 3 chars, or File.createTempFile(String, String)
-      // will throw an exception
+      // prefix must be at least 3 chars, or
+      // Files.createTempDirectory(String) will throw an exception
       while (prefix.length() < 3) prefix = "x" + prefix;
       String suffix = "." + writer.getSuffixes()[0];
-      File tmpFile = File.createTempFile(prefix, suffix);
-      tmpFile.deleteOnExit();
-      String convertedFile = tmpFile.getAbsolutePath();
+      // each conversion writes into its own directory, so that writers
+      // producing companion files cannot collide with each other
+      outputDir = Files.createTempDirectory(prefix).toFile();
+      String convertedFile = new File(outputDir, prefix + suffix).getPath();
+
+      int seriesCount = writer.canDoStacks() ? reader.getSeriesCount() : 1;
+      long outputSize = 0;
+      for (int series=0; series<seriesCount; series++) {
+        reader.setSeries(series);
+        int imageCount = writer.canDoStacks() ? reader.getImageCount() : 1;
+        outputSize += (long) imageCount * FormatTools.getPlaneSize(reader);
+      }
+      reader.setSeries(0);
+      target = WriteTarget.open(convertedFile, outputSize);
 
       IMetadata meta = (IMetadata) reader.getMetadataStore();
       writer.close();
@@ -181,8 +200,6 @@ public class FormatWriterTest {
       // convert the input file
       writer.setId(convertedFile);
 
-      int seriesCount = writer.canDoStacks() ? reader.getSeriesCount() : 1;
-
       for (int series=0; series<seriesCount; series++) {
         reader.setSeries(series);
         writer.setSeries(series);
@@ -278,17 +295,75 @@ public class FormatWriterTest {
           if (!success) break;
         }
       }
-      convertedReader.close();
     }
     catch (Throwable t) {
       LOGGER.info("", t);
       success = false;
     }
+    finally {
+      try {
+        reader.close();
+        convertedReader.close();
+        writer.close();
+      }
+      catch (IOException e) { LOGGER.info("", e); }
+      if (target != null) target.close();
+      if (outputDir != null) TestTools.deleteTree(outputDir);
+    }
     result(testName, success, msg);
   }
 
+  /**
+   * Measures conversion speed and output size for each writer, if enabled;
+   * see {@link WriterBenchmark}.
+   */
+  @Test(groups = {"all"}, dataProvider = "getBenchmarkWriterList")
+  public void testWriterThroughput(IFormatWriter writer) {
+    WriterBenchmark benchmark = WriterBenchmark.getBenchmark();
+    String testName = TestTools.shortClassName(writer) + " " +
+      writer.getCompression() + " testWriterThroughput";
+    try {
+      String msg = benchmark.measure(id, writer, isLosslessWriter(writer));
+      result(testName, msg == null, msg);
+    }
+    catch (Throwable t) {
+      if (TestTools.isOutOfMemory(t)) {
+        result(testName, true, "Image too large");
+        return;
+      }
+      LOGGER.info("", t);
+      result(testName, false, t.getMessage());
+    }
+  }
+
+  @AfterSuite(alwaysRun = true)
+  public void writeBenchmark() {
+    WriterBenchmark benchmark = WriterBenchmark.getBenchmark();
+    if (benchmark != null) {
+      benchmark.writeReport();
+    }
+  }
+
   // -- Helper methods --
 
+  /** Gets the pixel type of the input file, or -1 if it cannot be read. */
+  private int getPixelType() {
+    BufferedImageReader reader = new BufferedImageReader();
+    try {
+      reader.setId(id);
+      return reader.getPixelType();
+    }
+    catch (FormatException e) { LOGGER.info("", e); }
+    catch (IOException e) { LOGGER.info("", e); }
+    finally {
+      try {
+        reader.close();
+      }
+      catch (IOException e) { LOGGER.info("", e); }
+    }
+    return -1;
+  }
+
   private static String checkMismatch(boolean i1, boolean i2, int series,
     String label)
   {
@@ -0,0 +1,164 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import loci.common.IRandomAccess;
+import loci.common.Location;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the I/O performed on a set of files, split into named phases such
+ * as setId, plane reads and close. Each file is mapped to an
+ * {@link AccountingHandle} for the current thread until {@link #close()} is
+ * called; files that were already mapped (e.g. in memory) are wrapped, and
+ * their original mapping is restored afterwards.
+ */
+public class IOAccounting {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(IOAccounting.class);
+
+  // -- Fields --
+
+  private List<String> files = new ArrayList<String>();
+
+  private List<AccountingHandle> handles = new ArrayList<AccountingHandle>();
+
+  /** Handles that were mapped before accounting started. */
+  private List<IRandomAccess> originals = new ArrayList<IRandomAccess>();
+
+  private String phase = null;
+
+  private long[] bytes, reads, seeks;
+
+  /** Counts for each completed phase, indexed by metric name. */
+  private Map<String, Double> metrics = new LinkedHashMap<String, Double>();
+
+  // -- Constructor --
+
+  /** Starts accounting for I/O on the given files. */
+  public IOAccounting(String[] usedFiles) {
+    for (String file : usedFiles) {
+      if (files.contains(file)) {
+        continue;
+      }
+      try {
+        IRandomAccess original = Location.getMappedFile(file);
+        IRandomAccess handle =
+          original != null ? original : Location.getHandle(file);
+        AccountingHandle accounting = new AccountingHandle(handle);
+        Location.mapFile(file, accounting);
+        files.add(file);
+        handles.add(accounting);
+        originals.add(original);
+      }
+      catch (IOException e) {
+        LOGGER.debug("Not accounting for {}", file, e);
+      }
+    }
+    bytes = new long[handles.size()];
+    reads = new long[handles.size()];
+    seeks = new long[handles.size()];
+  }
+
+  // -- IOAccounting API methods --
+
+  /**
+   * Ends the current phase, if any, and starts counting
+   * for the given phase.
+   */
+  public void startPhase(String name) {
+    endPhase();
+    phase = name;
+    for (int i=0; i<handles.size(); i++) {
+      AccountingHandle h = handles.get(i);
+      bytes[i] = h.getBytesRead();
+      reads[i] = h.getReadCount();
+      seeks[i] = h.getSeekCount();
+      h.clearTouched();
+    }
+  }
+
+  /** Ends the current phase, recording its counts. */
+  public void endPhase() {
+    if (phase == null) {
+      return;
+    }
+    long totalBytes = 0, totalReads = 0, totalSeeks = 0, distinct = 0;
+    for (int i=0; i<handles.size(); i++) {
+      AccountingHandle h = handles.get(i);
+      totalBytes += h.getBytesRead() - bytes[i];
+      totalReads += h.getReadCount() - reads[i];
+      totalSeeks += h.getSeekCount() - seeks[i];
+      distinct += h.getDistinctBytes();
+    }
+    metrics.put(phase + "_bytes", (double) totalBytes);
+    metrics.put(phase + "_reads", (double) totalReads);
+    metrics.put(phase + "_seeks", (double) totalSeeks);
+    metrics.put(phase + "_distinct_bytes", (double) distinct);
+    phase = null;
+  }
+
+  /**
+   * Returns the bytes read, read calls, seeks and distinct bytes read for
+   * each completed phase, named e.g. "setid_bytes".
+   */
+  public Map<String, Double> getMetrics() {
+    return metrics;
+  }
+
+  /** Ends the current phase and restores the original file mappings. */
+  public void close() {
+    endPhase();
+    for (int i=0; i<files.size(); i++) {
+      IRandomAccess original = originals.get(i);
+      Location.mapFile(files.get(i), original);
+      if (original == null) {
+        try {
+          handles.get(i).close();
+        }
+        catch (IOException e) {
+          LOGGER.debug("Could not close {}", files.get(i), e);
+        }
+      }
+    }
+    files.clear();
+    handles.clear();
+    originals.clear();
+  }
+
+}
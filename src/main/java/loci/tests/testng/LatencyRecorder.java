@@ -0,0 +1,253 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import loci.common.Constants;
+
+/**
+ * Records operation latencies in fixed-size histograms, indexed by reader,
+ * operation and dataset, and writes a percentile report.
+ *
+ * A {@link Histogram} should be looked up once, before the loop being
+ * measured; {@link Histogram#record(long)} does not allocate, so that the
+ * measurements are not disturbed by garbage collection.
+ */
+public class LatencyRecorder {
+
+  // -- Constants --
+
+  /** Percentiles included in the report. */
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  // -- Fields --
+
+  private Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+
+  // -- LatencyRecorder API methods --
+
+  /**
+   * Returns the histogram for the given reader, operation and dataset,
+   * creating it if necessary.
+   */
+  public synchronized Histogram getHistogram(String reader, String operation,
+    String dataset)
+  {
+    String key = reader + "\t" + operation + "\t" + dataset;
+    Histogram histogram = histograms.get(key);
+    if (histogram == null) {
+      histogram = new Histogram(reader, operation, dataset);
+      histograms.put(key, histogram);
+    }
+    return histogram;
+  }
+
+  /**
+   * Writes a report of the recorded latencies, in milliseconds. The report is
+   * written as JSON if the file name ends in ".json", and as CSV otherwise.
+   */
+  public synchronized void writeReport(File file) throws IOException {
+    boolean json = file.getName().toLowerCase().endsWith(".json");
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(
+      new FileOutputStream(file), Constants.ENCODING));
+    try {
+      if (json) {
+        out.println("[");
+      }
+      else {
+        out.print("reader,operation,dataset,count,min,mean");
+        for (double p : PERCENTILES) {
+          out.print(",p" + formatPercentile(p));
+        }
+        out.println(",max");
+      }
+      int index = 0;
+      for (Histogram h : histograms.values()) {
+        if (json) {
+          out.print("  {\"reader\": " + quoteJSON(h.reader) +
+            ", \"operation\": " + quoteJSON(h.operation) +
+            ", \"dataset\": " + quoteJSON(h.dataset) +
+            ", \"count\": " + h.getCount() +
+            ", \"min\": " + millis(h.getMin()) +
+            ", \"mean\": " + millis(h.getMean()));
+          for (double p : PERCENTILES) {
+            out.print(", \"p" + formatPercentile(p) + "\": " +
+              millis(h.getPercentile(p)));
+          }
+          out.print(", \"max\": " + millis(h.getMax()) + "}");
+          out.println(++index < histograms.size() ? "," : "");
+        }
+        else {
+          out.print(quoteCSV(h.reader) + "," + quoteCSV(h.operation) + "," +
+            quoteCSV(h.dataset) + "," + h.getCount() + "," +
+            millis(h.getMin()) + "," + millis(h.getMean()));
+          for (double p : PERCENTILES) {
+            out.print("," + millis(h.getPercentile(p)));
+          }
+          out.println("," + millis(h.getMax()));
+        }
+      }
+      if (json) {
+        out.println("]");
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  private static String millis(double nanos) {
+    return String.format(Locale.ENGLISH, "%.3f", nanos / 1000000);
+  }
+
+  private static String formatPercentile(double p) {
+    return p == Math.floor(p) ? String.valueOf((int) p) :
+      String.valueOf(p).replace('.', '_');
+  }
+
+  private static String quoteJSON(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  private static String quoteCSV(String s) {
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0) {
+      return s;
+    }
+    return "\"" + s.replace("\"", "\"\"") + "\"";
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Log-linear histogram of latencies in nanoseconds. Values below
+   * {@link #SUB_BUCKETS} are counted exactly; larger values are counted in
+   * buckets that are at most 1/{@link #HALF_BUCKETS} of their value wide,
+   * i.e. with a relative error of about 3%.
+   */
+  public static class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_BUCKETS = SUB_BUCKETS / 2;
+
+    private final String reader;
+    private final String operation;
+    private final String dataset;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 2) *
+      HALF_BUCKETS];
+    private long count = 0;
+    private long total = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    private Histogram(String reader, String operation, String dataset) {
+      this.reader = reader;
+      this.operation = operation;
+      this.dataset = dataset;
+    }
+
+    /** Records a single latency, in nanoseconds. */
+    public synchronized void record(long nanos) {
+      if (nanos < 0) {
+        nanos = 0;
+      }
+      counts[indexOf(nanos)]++;
+      count++;
+      total += nanos;
+      if (nanos < min) min = nanos;
+      if (nanos > max) max = nanos;
+    }
+
+    public synchronized long getCount() {
+      return count;
+    }
+
+    public synchronized long getMin() {
+      return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+      return max;
+    }
+
+    public synchronized double getMean() {
+      return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded
+     * latencies fall, in nanoseconds.
+     */
+    public synchronized long getPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100 * count);
+      rank = Math.max(1, Math.min(rank, count));
+      long seen = 0;
+      for (int i=0; i<counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.max(min, Math.min(max, valueOf(i)));
+        }
+      }
+      return max;
+    }
+
+    /** Returns the bucket containing the given value. */
+    private static int indexOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      return shift * HALF_BUCKETS + (int) (value >>> shift);
+    }
+
+    /** Returns the middle of the values counted in the given bucket. */
+    private static long valueOf(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int shift = index / HALF_BUCKETS - 1;
+      long sub = index - shift * HALF_BUCKETS;
+      return (sub << shift) + ((1L << shift) >> 1);
+    }
+
+  }
+
+}
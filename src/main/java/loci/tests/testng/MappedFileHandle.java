@@ -0,0 +1,443 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import loci.common.IRandomAccess;
+
+/**
+ * Read-only IRandomAccess backed by one or more memory mapped windows of a
+ * file, so that files of any size can be mapped. A single
+ * {@link java.nio.MappedByteBuffer} cannot exceed 2 GB, so the file is
+ * mapped as consecutive segments and reads that span a segment boundary are
+ * stitched together. Mapping does not use the Java heap.
+ */
+public class MappedFileHandle implements IRandomAccess {
+
+  // -- Constants --
+
+  /** Default segment size (1 GB); must be a power of two. */
+  public static final int DEFAULT_SEGMENT_BITS = 30;
+
+  // -- Fields --
+
+  private MappedByteBuffer[] segments;
+
+  private int segmentBits;
+
+  private long segmentMask;
+
+  private long length;
+
+  private long pointer = 0;
+
+  private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+  /** Scratch space for values that span a segment boundary. */
+  private byte[] scratch = new byte[8];
+
+  private ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+
+  /** Offset of the next value within the buffer returned by buffer(int). */
+  private int offset;
+
+  // -- Constructors --
+
+  public MappedFileHandle(String file) throws IOException {
+    this(file, DEFAULT_SEGMENT_BITS);
+  }
+
+  /** Maps the given file in segments of 2^segmentBits bytes. */
+  public MappedFileHandle(String file, int segmentBits) throws IOException {
+    if (segmentBits < 1 || segmentBits > 30) {
+      throw new IllegalArgumentException(
+        "Invalid segment size: 2^" + segmentBits);
+    }
+    this.segmentBits = segmentBits;
+    segmentMask = (1L << segmentBits) - 1;
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      FileChannel channel = fis.getChannel();
+      length = channel.size();
+      int count = (int) ((length + segmentMask) >> segmentBits);
+      segments = new MappedByteBuffer[count];
+      for (int i=0; i<count; i++) {
+        long offset = (long) i << segmentBits;
+        long size = Math.min(segmentMask + 1, length - offset);
+        segments[i] =
+          channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        segments[i].order(order);
+      }
+    }
+    finally {
+      fis.close();
+    }
+  }
+
+  // -- MappedFileHandle API methods --
+
+  /**
+   * Loads the whole file into physical memory, so that later reads do not
+   * incur page faults.
+   */
+  public void load() {
+    for (MappedByteBuffer segment : segments) {
+      segment.load();
+    }
+  }
+
+  // -- IRandomAccess API methods --
+
+  @Override
+  public void close() throws IOException {
+    // mapped buffers are released when they are garbage collected
+    segments = new MappedByteBuffer[0];
+    length = 0;
+    pointer = 0;
+  }
+
+  @Override
+  public long getFilePointer() throws IOException {
+    return pointer;
+  }
+
+  @Override
+  public long length() throws IOException {
+    return length;
+  }
+
+  @Override
+  public ByteOrder getOrder() {
+    return order;
+  }
+
+  @Override
+  public void setOrder(ByteOrder order) {
+    this.order = order;
+    scratchBuffer.order(order);
+    for (ByteBuffer segment : segments) {
+      segment.order(order);
+    }
+  }
+
+  @Override
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (pointer >= length) {
+      return -1;
+    }
+    int n = (int) Math.min(len, length - pointer);
+    copy(b, off, n);
+    return n;
+  }
+
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    return read(buffer, 0, buffer.capacity());
+  }
+
+  @Override
+  public int read(ByteBuffer buffer, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (pointer >= length) {
+      return -1;
+    }
+    int n = (int) Math.min(len, length - pointer);
+    buffer.position(off);
+    int remaining = n;
+    while (remaining > 0) {
+      ByteBuffer segment = segments[(int) (pointer >> segmentBits)];
+      int pos = (int) (pointer & segmentMask);
+      int count = Math.min(remaining, segment.limit() - pos);
+      ByteBuffer window = segment.duplicate();
+      window.limit(pos + count);
+      window.position(pos);
+      buffer.put(window);
+      pointer += count;
+      remaining -= count;
+    }
+    return n;
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    pointer = pos;
+  }
+
+  @Override
+  public void write(ByteBuffer buf) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void write(ByteBuffer buf, int off, int len) throws IOException {
+    throw readOnly();
+  }
+
+  // -- DataInput API methods --
+
+  @Override
+  public void readFully(byte[] b) throws IOException {
+    readFully(b, 0, b.length);
+  }
+
+  @Override
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    if (pointer + len > length) {
+      throw new EOFException();
+    }
+    copy(b, off, len);
+  }
+
+  @Override
+  public int skipBytes(int n) throws IOException {
+    int skipped = (int) Math.max(0, Math.min(n, length - pointer));
+    pointer += skipped;
+    return skipped;
+  }
+
+  @Override
+  public boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  @Override
+  public byte readByte() throws IOException {
+    if (pointer >= length) {
+      throw new EOFException();
+    }
+    byte b = segments[(int) (pointer >> segmentBits)].get(
+      (int) (pointer & segmentMask));
+    pointer++;
+    return b;
+  }
+
+  @Override
+  public int readUnsignedByte() throws IOException {
+    return readByte() & 0xff;
+  }
+
+  @Override
+  public short readShort() throws IOException {
+    short value = buffer(2).getShort(offset);
+    pointer += 2;
+    return value;
+  }
+
+  @Override
+  public int readUnsignedShort() throws IOException {
+    return readShort() & 0xffff;
+  }
+
+  @Override
+  public char readChar() throws IOException {
+    return (char) readShort();
+  }
+
+  @Override
+  public int readInt() throws IOException {
+    int value = buffer(4).getInt(offset);
+    pointer += 4;
+    return value;
+  }
+
+  @Override
+  public long readLong() throws IOException {
+    long value = buffer(8).getLong(offset);
+    pointer += 8;
+    return value;
+  }
+
+  @Override
+  public float readFloat() throws IOException {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  @Override
+  public double readDouble() throws IOException {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  @Override
+  public String readLine() throws IOException {
+    if (pointer >= length) {
+      return null;
+    }
+    StringBuilder line = new StringBuilder();
+    while (pointer < length) {
+      int c = readUnsignedByte();
+      if (c == '\n') {
+        break;
+      }
+      if (c == '\r') {
+        if (pointer < length && readUnsignedByte() != '\n') {
+          pointer--;
+        }
+        break;
+      }
+      line.append((char) c);
+    }
+    return line.toString();
+  }
+
+  @Override
+  public String readUTF() throws IOException {
+    return DataInputStream.readUTF(this);
+  }
+
+  // -- DataOutput API methods --
+
+  @Override
+  public void write(int b) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void write(byte[] b) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeBoolean(boolean v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeByte(int v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeShort(int v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeChar(int v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeInt(int v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeLong(long v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeFloat(float v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeDouble(double v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeBytes(String s) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeChars(String s) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeUTF(String s) throws IOException {
+    throw readOnly();
+  }
+
+  // -- Helper methods --
+
+  /** Copies len bytes from the file pointer, which must all exist. */
+  private void copy(byte[] b, int off, int len) {
+    while (len > 0) {
+      ByteBuffer segment = segments[(int) (pointer >> segmentBits)];
+      int pos = (int) (pointer & segmentMask);
+      int count = Math.min(len, segment.limit() - pos);
+      ByteBuffer window = segment.duplicate();
+      window.position(pos);
+      window.get(b, off, count);
+      pointer += count;
+      off += count;
+      len -= count;
+    }
+  }
+
+  /**
+   * Returns a buffer from which the given number of bytes at the file
+   * pointer can be read, starting at {@link #offset}. This is the mapped
+   * segment itself unless the bytes span a segment boundary.
+   */
+  private ByteBuffer buffer(int bytes) throws IOException {
+    if (pointer + bytes > length) {
+      throw new EOFException();
+    }
+    ByteBuffer segment = segments[(int) (pointer >> segmentBits)];
+    offset = (int) (pointer & segmentMask);
+    if (offset + bytes <= segment.limit()) {
+      return segment;
+    }
+    long start = pointer;
+    copy(scratch, 0, bytes);
+    pointer = start;
+    offset = 0;
+    return scratchBuffer;
+  }
+
+  private static IOException readOnly() {
+    return new IOException("Memory mapped files are read-only");
+  }
+
+}
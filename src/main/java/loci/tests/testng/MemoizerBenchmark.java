@@ -0,0 +1,337 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import loci.common.Constants;
+import loci.formats.FormatException;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the cost and benefit of {@link Memoizer} for each dataset, and
+ * recommends a minimumElapsed threshold for each reader.
+ *
+ * For each dataset, the plain setId time is compared with the time taken by
+ * setId when the memo file is written and when it is loaded. The memo write
+ * time is estimated as the difference between the Memoizer setId that saves
+ * the memo and the plain setId. Each is repeated after
+ * {@link TestTools#getWarmupIterations()} untimed rounds, at least
+ * {@link #MINIMUM_ITERATIONS} times, and the medians are reported, as the
+ * difference of two single timings is dominated by noise.
+ *
+ * Enabled by setting testng.memo-benchmark to a directory, in which
+ * memo-datasets.tsv and memo-readers.tsv are written. Memoizer only saves a
+ * memo when setId takes longer than minimumElapsed, so the recommended
+ * threshold for a reader is the smallest plain setId time above which
+ * loading the memo was faster than parsing for every dataset. Readers for
+ * which loading the memo is slower than parsing in the median are flagged.
+ */
+public class MemoizerBenchmark {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(MemoizerBenchmark.class);
+
+  /** Smallest number of measured rounds for each dataset. */
+  public static final int MINIMUM_ITERATIONS = 3;
+
+  // -- Static fields --
+
+  private static MemoizerBenchmark benchmark;
+
+  private static boolean initialized = false;
+
+  // -- Fields --
+
+  private File reportDir;
+
+  private List<Result> results = new ArrayList<Result>();
+
+  // -- Constructor --
+
+  public MemoizerBenchmark(String reportDir) {
+    this.reportDir = new File(reportDir);
+  }
+
+  // -- Static utility methods --
+
+  /**
+   * Returns the benchmark configured by testng.memo-benchmark,
+   * or null if Memoizer is not being benchmarked.
+   */
+  public static synchronized MemoizerBenchmark getBenchmark() {
+    if (!initialized) {
+      String dir = TestTools.getProperty("testng.memo-benchmark");
+      if (dir != null && !dir.isEmpty()) {
+        LOGGER.info("testng.memo-benchmark = {}", dir);
+        benchmark = new MemoizerBenchmark(dir);
+      }
+      initialized = true;
+    }
+    return benchmark;
+  }
+
+  // -- MemoizerBenchmark API methods --
+
+  /**
+   * Measures plain and memoized initialization of the given file.
+   * Returns a description of the problem if the memo file could not be
+   * saved or loaded, or null otherwise.
+   */
+  public String measure(String id) throws FormatException, IOException {
+    // this should prevent conflicts when running multiple tests
+    // on the same system and/or in multiple threads
+    String tmpdir = System.getProperty("java.io.tmpdir");
+    File memoDir = new File(tmpdir, UUID.randomUUID().toString() + ".memo");
+    memoDir.mkdir();
+    File memoFile = null;
+    try {
+      // parse once so that the plain setId is not penalized for
+      // class loading or a cold file cache
+      ImageReader reader = new ImageReader();
+      reader.setId(id);
+      reader.close();
+
+      Result result = new Result(id);
+      int warmup = TestTools.getWarmupIterations();
+      int measured =
+        Math.max(MINIMUM_ITERATIONS, TestTools.getMeasuredIterations());
+      long[] plainNanos = new long[measured];
+      long[] writeNanos = new long[measured];
+      long[] loadNanos = new long[measured];
+      for (int i=0; i<warmup + measured; i++) {
+        long start = System.nanoTime();
+        reader.setId(id);
+        long plain = System.nanoTime() - start;
+        result.reader = TestTools.shortClassName(reader.getReader());
+        reader.close();
+
+        // the memo is only saved if there is none to load
+        if (memoFile != null) {
+          memoFile.delete();
+        }
+        Memoizer memo = new Memoizer(0, memoDir);
+        start = System.nanoTime();
+        memo.setId(id);
+        long save = System.nanoTime() - start;
+        memo.close();
+        memoFile = memo.getMemoFile(id);
+        if (!memo.isSavedToMemo()) {
+          return "Memo file not saved";
+        }
+        result.memoBytes = memoFile == null ? -1 : memoFile.length();
+
+        memo = new Memoizer(0, memoDir);
+        start = System.nanoTime();
+        memo.setId(id);
+        long load = System.nanoTime() - start;
+        boolean loaded = memo.isLoadedFromMemo();
+        memo.close();
+        if (!loaded) {
+          return "Memo file could not be loaded";
+        }
+
+        if (i >= warmup) {
+          plainNanos[i - warmup] = plain;
+          writeNanos[i - warmup] = save - plain;
+          loadNanos[i - warmup] = load;
+        }
+      }
+      result.plainNanos = median(plainNanos);
+      result.writeNanos = Math.max(0, median(writeNanos));
+      result.loadNanos = median(loadNanos);
+
+      LOGGER.debug("{}: setId {} ms, memo write {} ms, memo load {} ms, " +
+        "memo size {} bytes", new Object[] {id, result.plainNanos / 1000000.0,
+        result.writeNanos / 1000000.0, result.loadNanos / 1000000.0,
+        result.memoBytes});
+      synchronized (results) {
+        results.add(result);
+      }
+      return null;
+    }
+    finally {
+      if (memoFile != null) {
+        memoFile.delete();
+        // recursively delete, as the original file's path is replicated
+        // within the memo directory
+        while (memoFile.getParentFile() != null &&
+          !memoFile.getParentFile().equals(memoDir))
+        {
+          memoFile = memoFile.getParentFile();
+          memoFile.delete();
+        }
+      }
+      memoDir.delete();
+    }
+  }
+
+  /** Writes the per-dataset results and per-reader recommendations. */
+  public void writeReport() {
+    Map<String, List<Result>> byReader = new TreeMap<String, List<Result>>();
+    synchronized (results) {
+      for (Result r : results) {
+        List<Result> list = byReader.get(r.reader);
+        if (list == null) {
+          list = new ArrayList<Result>();
+          byReader.put(r.reader, list);
+        }
+        list.add(r);
+      }
+    }
+    if (!reportDir.exists()) {
+      reportDir.mkdirs();
+    }
+
+    PrintWriter out = null;
+    try {
+      out = open("memo-datasets.tsv");
+      out.println("reader\tid\tsetid_ms\tmemo_write_ms\tmemo_load_ms\t" +
+        "memo_bytes\tspeedup");
+      for (List<Result> list : byReader.values()) {
+        for (Result r : list) {
+          out.println(String.format(Locale.ENGLISH,
+            "%s\t%s\t%.3f\t%.3f\t%.3f\t%d\t%.2f", r.reader, r.id,
+            r.plainNanos / 1000000.0, r.writeNanos / 1000000.0,
+            r.loadNanos / 1000000.0, r.memoBytes,
+            r.loadNanos == 0 ? 0 : (double) r.plainNanos / r.loadNanos));
+        }
+      }
+      out.close();
+
+      out = open("memo-readers.tsv");
+      out.println("reader\tdatasets\tmedian_setid_ms\tmedian_load_ms\t" +
+        "median_memo_bytes\trecommended_minimum_elapsed_ms\tflag");
+      for (Map.Entry<String, List<Result>> entry : byReader.entrySet()) {
+        List<Result> list = entry.getValue();
+        long[] plainNanos = new long[list.size()];
+        long[] loadNanos = new long[list.size()];
+        long[] memoBytes = new long[list.size()];
+        for (int i=0; i<list.size(); i++) {
+          plainNanos[i] = list.get(i).plainNanos;
+          loadNanos[i] = list.get(i).loadNanos;
+          memoBytes[i] = list.get(i).memoBytes;
+        }
+        long plain = median(plainNanos);
+        long load = median(loadNanos);
+        long bytes = median(memoBytes);
+        long threshold = getThreshold(list);
+        String flag = load >= plain ? "memo_slower" : "";
+        out.println(String.format(Locale.ENGLISH,
+          "%s\t%d\t%.3f\t%.3f\t%d\t%s\t%s", entry.getKey(), list.size(),
+          plain / 1000000.0, load / 1000000.0, bytes,
+          threshold < 0 ? "never" : String.valueOf(threshold / 1000000),
+          flag));
+        if (load >= plain) {
+          LOGGER.warn("{}: loading the memo ({} ms) is slower than " +
+            "parsing ({} ms)", new Object[] {entry.getKey(),
+            load / 1000000.0, plain / 1000000.0});
+        }
+      }
+    }
+    catch (IOException e) {
+      LOGGER.warn("Could not write Memoizer benchmark to {}", reportDir, e);
+    }
+    finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  private PrintWriter open(String name) throws IOException {
+    return new PrintWriter(new OutputStreamWriter(
+      new FileOutputStream(new File(reportDir, name)), Constants.ENCODING));
+  }
+
+  /**
+   * Returns the smallest plain setId time, in nanoseconds, such that loading
+   * the memo was faster than parsing for every dataset that took at least
+   * that long to parse; or -1 if loading the memo was never faster.
+   */
+  private static long getThreshold(List<Result> list) {
+    List<Result> sorted = new ArrayList<Result>(list);
+    Collections.sort(sorted, new Comparator<Result>() {
+      @Override
+      public int compare(Result a, Result b) {
+        return Long.valueOf(a.plainNanos).compareTo(b.plainNanos);
+      }
+    });
+    long threshold = -1;
+    for (int i=sorted.size()-1; i>=0; i--) {
+      Result r = sorted.get(i);
+      if (r.loadNanos >= r.plainNanos) {
+        break;
+      }
+      threshold = r.plainNanos;
+    }
+    return threshold;
+  }
+
+  private static long median(long[] values) {
+    Arrays.sort(values);
+    return values[values.length / 2];
+  }
+
+  // -- Helper classes --
+
+  /** Timings for a single dataset. */
+  private static class Result {
+    String id;
+    String reader;
+    long plainNanos;
+    long writeNanos;
+    long loadNanos;
+    long memoBytes;
+
+    Result(String id) {
+      this.id = id;
+    }
+  }
+
+}
@@ -44,7 +44,9 @@ import org.perf4j.StopWatch;
 import org.perf4j.slf4j.Slf4JStopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.testng.SkipException;
 import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterSuite;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Listeners;
 import org.testng.annotations.Parameters;
@@ -105,6 +107,15 @@ public class OpenBytesPerformanceTest
 
   private boolean bigImage = false;
 
+  /** Latencies recorded by all instances, reported at the end of the suite. */
+  private static final LatencyRecorder LATENCIES = new LatencyRecorder();
+
+  /** Block sizes with which to compare read-ahead to direct reads. */
+  private static final int[] READ_AHEAD_SIZES =
+    {65536, 262144, 1048576, 4194304};
+
+  private String readerName;
+
   private void assertBlock(int blockSize, int posX, int posY, int width,
           int height) throws Exception {
     byte[] plane = new byte[planeSize];
@@ -206,6 +217,62 @@ public class OpenBytesPerformanceTest
     }
   }
 
+  /**
+   * Reads every plane in order with a new reader, recording the latencies
+   * as the given operation, or not at all if the operation is null.
+   * Returns the median latency in nanoseconds, or -1 if not recorded.
+   */
+  private long readPlanes(String operation) throws Exception {
+    LatencyRecorder.Histogram latency = operation == null ? null :
+      LATENCIES.getHistogram(readerName, operation, filename);
+    IFormatReader planeReader = new ImageReader();
+    try {
+      planeReader.setId(id);
+      for (int series = 0; series < planeReader.getSeriesCount(); series++) {
+        planeReader.setSeries(series);
+        byte[] plane = new byte[FormatTools.getPlaneSize(planeReader)];
+        for (int i = 0; i < planeReader.getImageCount(); i++) {
+          long start = System.nanoTime();
+          planeReader.openBytes(i, plane);
+          if (latency != null) {
+            latency.record(System.nanoTime() - start);
+          }
+        }
+      }
+    }
+    finally {
+      planeReader.close();
+    }
+    return latency == null ? -1 : latency.getPercentile(50);
+  }
+
+  /**
+   * Runs the given pass {@link TestTools#getWarmupIterations()} times,
+   * recording its latencies as &lt;operation&gt;_warmup, and then
+   * {@link TestTools#getMeasuredIterations()} times, recording them as
+   * the given operation.
+   */
+  private void repeat(String operation, Pass pass) throws Exception {
+    int warmup = TestTools.getWarmupIterations();
+    if (warmup > 0) {
+      LatencyRecorder.Histogram warmupLatency =
+        LATENCIES.getHistogram(readerName, operation + "_warmup", filename);
+      for (int i = 0; i < warmup; i++) {
+        pass.run(warmupLatency);
+      }
+    }
+    LatencyRecorder.Histogram latency =
+      LATENCIES.getHistogram(readerName, operation, filename);
+    for (int i = 0; i < TestTools.getMeasuredIterations(); i++) {
+      pass.run(latency);
+    }
+  }
+
+  /** A single pass of a test, recording each read into a histogram. */
+  private interface Pass {
+    void run(LatencyRecorder.Histogram latency) throws Exception;
+  }
+
   public boolean isNotBigImage() {
       return !bigImage;
   }
@@ -224,6 +291,15 @@ public class OpenBytesPerformanceTest
     reader.close();
   }
 
+  @AfterSuite(alwaysRun = true)
+  public void writeLatencyReport() throws Exception {
+    String report = TestTools.getProperty("testng.latency-report");
+    if (report != null && !report.isEmpty()) {
+      LOGGER.info("Writing latency report to {}", report);
+      LATENCIES.writeReport(new File(report));
+    }
+  }
+
   @Test
   public void setId() throws Exception {
     reader = new ImageReader();
@@ -236,99 +312,163 @@ public class OpenBytesPerformanceTest
     }
 
     StopWatch stopWatch = new Slf4JStopWatch();
+    long start = System.nanoTime();
     reader.setId(id);
-    stopWatch.stop(String.format("%s.setId.%s",
-            ((ReaderWrapper) reader).unwrap().getClass().getName(), filename));
+    long end = System.nanoTime();
+    readerName = ((ReaderWrapper) reader).unwrap().getClass().getName();
+    stopWatch.stop(String.format("%s.setId.%s", readerName, filename));
+    LATENCIES.getHistogram(readerName, "setId", filename).record(end - start);
     seriesCount = reader.getSeriesCount();
   }
 
+  /**
+   * Times reading the first tile, before anything has been warmed up.
+   * Runs before the other tests that read pixels.
+   */
+  @Test(dependsOnMethods={"setId"}, priority = -1)
+  public void testFirstTile() throws Exception {
+    reader.setSeries(0);
+    int tileWidth = Math.min(reader.getOptimalTileWidth(), reader.getSizeX());
+    int tileHeight =
+      Math.min(reader.getOptimalTileHeight(), reader.getSizeY());
+    long start = System.nanoTime();
+    reader.openBytes(0, 0, 0, tileWidth, tileHeight);
+    long end = System.nanoTime();
+    LATENCIES.getHistogram(readerName, "first_tile", filename).record(
+      end - start);
+  }
+
   @Test(dependsOnMethods={"setId"})
   public void testOpenBytesAllTilesNewBuffer() throws Exception {
-    for (int series = 0; series < seriesCount; series++) {
-      assertSeries(series);
-      for (int image = 0; image < imageCount; image++) {
-        LOGGER.info("Reading from series {} image {}", series, image);
-        optimalTileWidth = reader.getOptimalTileWidth();
-        optimalTileHeight = reader.getOptimalTileHeight();
-        LOGGER.info("Optimal tile {}x{}", optimalTileWidth, optimalTileHeight);
-        int tilesWide = (int) Math.ceil((double) sizeX / optimalTileWidth);
-        int tilesHigh = (int) Math.ceil((double) sizeY / optimalTileHeight);
-        LOGGER.info("Tile counts {}x{}", tilesWide, tilesHigh);
-        int x, y = 0;
-        StopWatch stopWatch;
-        for (int tileX = 0; tileX < tilesWide; tileX++) {
-          for (int tileY = 0; tileY < tilesHigh; tileY++) {
-            x = tileX * optimalTileWidth;
-            y = tileY * optimalTileHeight;
-
-            int actualTileWidth =
-              (int) Math.min(optimalTileWidth, reader.getSizeX() - x);
-            int actualTileHeight =
-              (int) Math.min(optimalTileHeight, reader.getSizeY() - y);
-
-            LOGGER.info("Reading tile at {}x{}", x, y);
-            stopWatch = new Slf4JStopWatch(String.format(
-                "%s.alloc_tile.%s.[%d:%d]",
-                ((ReaderWrapper) reader).unwrap().getClass().getName(),
-                filename, series, image));
-            reader.openBytes(0, x, y, actualTileWidth, actualTileHeight);
-            stopWatch.stop();
+    repeat("alloc_tile", new Pass() {
+      @Override
+      public void run(LatencyRecorder.Histogram latency) throws Exception {
+        for (int series = 0; series < seriesCount; series++) {
+          assertSeries(series);
+          for (int image = 0; image < imageCount; image++) {
+            LOGGER.info("Reading from series {} image {}", series, image);
+            optimalTileWidth = reader.getOptimalTileWidth();
+            optimalTileHeight = reader.getOptimalTileHeight();
+            LOGGER.info("Optimal tile {}x{}",
+              optimalTileWidth, optimalTileHeight);
+            int tilesWide = (int) Math.ceil((double) sizeX / optimalTileWidth);
+            int tilesHigh =
+              (int) Math.ceil((double) sizeY / optimalTileHeight);
+            LOGGER.info("Tile counts {}x{}", tilesWide, tilesHigh);
+            int x, y = 0;
+            for (int tileX = 0; tileX < tilesWide; tileX++) {
+              for (int tileY = 0; tileY < tilesHigh; tileY++) {
+                x = tileX * optimalTileWidth;
+                y = tileY * optimalTileHeight;
+
+                int actualTileWidth =
+                  (int) Math.min(optimalTileWidth, reader.getSizeX() - x);
+                int actualTileHeight =
+                  (int) Math.min(optimalTileHeight, reader.getSizeY() - y);
+
+                LOGGER.info("Reading tile at {}x{}", x, y);
+                long start = System.nanoTime();
+                reader.openBytes(0, x, y, actualTileWidth, actualTileHeight);
+                latency.record(System.nanoTime() - start);
+              }
+            }
           }
         }
       }
-    }
+    });
   }
 
   @Test(dependsOnMethods={"setId"})
   @Assumption(methods = "isNotBigImage")
   public void testOpenBytesAllTilesPreAllocatedBuffer() throws Exception {
-    for (int series = 0; series < seriesCount; series++) {
-      assertSeries(series);
-      for (int image = 0; image < imageCount; image++) {
-        LOGGER.info("Reading from series {} image {}", series, image);
-        optimalTileWidth = reader.getOptimalTileWidth();
-        optimalTileHeight = reader.getOptimalTileHeight();
-        LOGGER.info("Optimal tile {}x{}", optimalTileWidth, optimalTileHeight);
-        int tilesWide = (int) Math.ceil((double) sizeX / optimalTileWidth);
-        int tilesHigh = (int) Math.ceil((double) sizeY / optimalTileHeight);
-        LOGGER.info("Tile counts {}x{}", tilesWide, tilesHigh);
-        int x, y = 0;
-        StopWatch stopWatch;
-        byte[] buf = new byte[optimalTileWidth * optimalTileHeight *
-          FormatTools.getBytesPerPixel(reader.getPixelType())];
-        LOGGER.info("Allocated buffer size: {}", buf.length);
-        for (int tileX = 0; tileX < tilesWide; tileX++) {
-          for (int tileY = 0; tileY < tilesHigh; tileY++) {
-            x = tileX * optimalTileWidth;
-            y = tileY * optimalTileHeight;
-
-            int actualTileWidth =
-              (int) Math.min(optimalTileWidth, reader.getSizeX() - x);
-            int actualTileHeight =
-              (int) Math.min(optimalTileHeight, reader.getSizeY() - y);
-
-            LOGGER.info("Reading tile at {}x{}", x, y);
-            stopWatch = new Slf4JStopWatch(String.format(
-                "%s.prealloc_tile.%s.[%d:%d]",
-                ((ReaderWrapper) reader).unwrap().getClass().getName(),
-                filename, series, image));
-            reader.openBytes(image, buf, x, y, actualTileWidth,
-                             actualTileHeight);
-            stopWatch.stop();
+    repeat("prealloc_tile", new Pass() {
+      @Override
+      public void run(LatencyRecorder.Histogram latency) throws Exception {
+        for (int series = 0; series < seriesCount; series++) {
+          assertSeries(series);
+          for (int image = 0; image < imageCount; image++) {
+            LOGGER.info("Reading from series {} image {}", series, image);
+            optimalTileWidth = reader.getOptimalTileWidth();
+            optimalTileHeight = reader.getOptimalTileHeight();
+            LOGGER.info("Optimal tile {}x{}",
+              optimalTileWidth, optimalTileHeight);
+            int tilesWide = (int) Math.ceil((double) sizeX / optimalTileWidth);
+            int tilesHigh =
+              (int) Math.ceil((double) sizeY / optimalTileHeight);
+            LOGGER.info("Tile counts {}x{}", tilesWide, tilesHigh);
+            int x, y = 0;
+            byte[] buf = new byte[optimalTileWidth * optimalTileHeight *
+              FormatTools.getBytesPerPixel(reader.getPixelType())];
+            LOGGER.info("Allocated buffer size: {}", buf.length);
+            for (int tileX = 0; tileX < tilesWide; tileX++) {
+              for (int tileY = 0; tileY < tilesHigh; tileY++) {
+                x = tileX * optimalTileWidth;
+                y = tileY * optimalTileHeight;
+
+                int actualTileWidth =
+                  (int) Math.min(optimalTileWidth, reader.getSizeX() - x);
+                int actualTileHeight =
+                  (int) Math.min(optimalTileHeight, reader.getSizeY() - y);
+
+                LOGGER.info("Reading tile at {}x{}", x, y);
+                long start = System.nanoTime();
+                reader.openBytes(image, buf, x, y, actualTileWidth,
+                                 actualTileHeight);
+                latency.record(System.nanoTime() - start);
+              }
+            }
           }
         }
       }
-    }
+    });
   }
 
   @Test(dependsOnMethods={"setId"})
   @Assumption(methods = "isNotBigImage")
   public void testOpenBytesPlane() throws Exception {
-    for (int series = 0; series < seriesCount; series++) {
-      assertSeries(series);
-      byte[] plane = new byte[planeSize];
-      for (int i = 0; i < reader.getImageCount(); i++) {
-        reader.openBytes(i, plane);
+    repeat("plane", new Pass() {
+      @Override
+      public void run(LatencyRecorder.Histogram latency) throws Exception {
+        for (int series = 0; series < seriesCount; series++) {
+          assertSeries(series);
+          byte[] plane = new byte[planeSize];
+          for (int i = 0; i < reader.getImageCount(); i++) {
+            long start = System.nanoTime();
+            reader.openBytes(i, plane);
+            latency.record(System.nanoTime() - start);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Reads every plane in order with a separate reader, first reading the
+   * files directly and then reading ahead with each block size. Latencies
+   * are recorded as plane_direct and plane_readahead_&lt;block size&gt;.
+   * An untimed pass is read first, so that every timed pass starts with the
+   * same contents in the operating system's file cache.
+   */
+  @Test(dependsOnMethods={"setId"})
+  @Assumption(methods = "isNotBigImage")
+  public void testOpenBytesPlaneReadAhead() throws Exception {
+    if (memMap) {
+      throw new SkipException("Files are mapped into memory");
+    }
+    String[] files = reader.getUsedFiles();
+    readPlanes(null);
+    long direct = readPlanes("plane_direct");
+    for (int blockSize : READ_AHEAD_SIZES) {
+      TestTools.mapReadAhead(files, blockSize,
+        ReadAheadHandle.DEFAULT_BLOCKS);
+      try {
+        long median = readPlanes("plane_readahead_" + blockSize);
+        LOGGER.info("{}: median plane {} ns with read-ahead in blocks of " +
+          "{}, {} ns without", new Object[] {filename, median, blockSize,
+          direct});
+      }
+      finally {
+        TestTools.unmapFiles(files);
       }
     }
   }
@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+/**
+ * Measures the heap allocated by the current thread during an operation,
+ * as an upper bound on the transient peak that the operation adds to the
+ * heap. Unlike sampling the used heap before and after, this includes
+ * buffers that are collected before the operation finishes, whichever
+ * generation they were allocated in, which is what causes out of memory
+ * errors while initializing a reader.
+ *
+ * The JVM only tracks peak usage per heap pool, for all threads together,
+ * and the young generation fills to its capacity between collections
+ * whatever the operation does; counting the thread's own allocation keeps
+ * the measurement valid when datasets are tested in parallel. Work done by
+ * other threads on the operation's behalf is not included.
+ *
+ * Requires per-thread allocation accounting; see
+ * {@link ThreadUsage#isAllocationSupported()}.
+ */
+public class PeakMemoryMonitor {
+
+  // -- Fields --
+
+  private long startAllocated = -1;
+
+  private long allocated = -1;
+
+  // -- PeakMemoryMonitor API methods --
+
+  /** Starts measuring the current thread. */
+  public void start() {
+    startAllocated = ThreadUsage.currentAllocatedBytes();
+    allocated = -1;
+  }
+
+  /**
+   * Stops measuring. Must be called from the same thread as
+   * {@link #start()}.
+   */
+  public void stop() {
+    long endAllocated = ThreadUsage.currentAllocatedBytes();
+    if (startAllocated >= 0 && endAllocated >= 0) {
+      allocated = endAllocated - startAllocated;
+    }
+  }
+
+  /**
+   * Returns the number of bytes allocated during the measurement,
+   * or -1 if nothing was measured or allocation cannot be measured.
+   */
+  public long getPeakBytes() {
+    return allocated;
+  }
+
+  /** Returns the peak heap usage in MB; see {@link #getPeakBytes()}. */
+  public int getPeakMB() {
+    long bytes = getPeakBytes();
+    return bytes < 0 ? -1 : (int) (bytes >> 20);
+  }
+
+}
@@ -0,0 +1,331 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import loci.common.Constants;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local store of per-dataset performance measurements from previous runs.
+ * Each host class (a group of machines expected to perform alike) has its
+ * own history file in the store directory, to which one line is appended
+ * per dataset and run. A line contains the following tab-separated fields:
+ * timestamp, build, dataset, then one <code>metric=value</code> field per
+ * measurement.
+ *
+ * A new measurement is considered a regression if it exceeds the median of
+ * the last runs by more than {@link #THRESHOLD} scaled median absolute
+ * deviations. A trend report with one line per dataset and metric is
+ * written for every run.
+ */
+public class PerformanceHistory {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(PerformanceHistory.class);
+
+  private static final String SEPARATOR = "\t";
+
+  /** Default number of previous runs to compare against. */
+  public static final int DEFAULT_RUNS = 10;
+
+  /** Minimum number of previous runs needed to detect a regression. */
+  public static final int MINIMUM_RUNS = 3;
+
+  /** Number of scaled MADs above the median that indicates a regression. */
+  public static final double THRESHOLD = 3;
+
+  /** Scales the MAD to estimate the standard deviation of normal data. */
+  private static final double MAD_SCALE = 1.4826;
+
+  /**
+   * Smallest allowed deviation, relative to the median, so that runs with
+   * identical timings do not flag every small change.
+   */
+  private static final double MINIMUM_DEVIATION = 0.05;
+
+  /**
+   * Smallest allowed deviation, in the metric's own units, so that metrics
+   * whose median is 0 (such as seek counts) do not flag every increase.
+   */
+  private static final double MINIMUM_ABSOLUTE_DEVIATION = 1;
+
+  // -- Fields --
+
+  private File historyFile;
+
+  private File reportFile;
+
+  private int runs;
+
+  /** Most recent values of each metric, indexed by dataset. */
+  private Map<String, Map<String, LinkedList<Double>>> history =
+    new HashMap<String, Map<String, LinkedList<Double>>>();
+
+  // -- Constructor --
+
+  /**
+   * Opens the history for the given host class in the given directory,
+   * creating it if necessary.
+   *
+   * @param directory directory containing the history files
+   * @param hostClass name of the class of machine running the tests,
+   *   or null to derive one from the current machine
+   * @param runs number of previous runs to compare against
+   */
+  public PerformanceHistory(String directory, String hostClass, int runs)
+    throws IOException
+  {
+    if (hostClass == null) {
+      hostClass = getDefaultHostClass();
+    }
+    hostClass = hostClass.replaceAll("[^A-Za-z0-9._-]", "_");
+    this.runs = runs;
+    File dir = new File(directory).getAbsoluteFile();
+    dir.mkdirs();
+    historyFile = new File(dir, hostClass + ".tsv");
+    reportFile = new File(dir, hostClass + "-trend.tsv");
+    if (historyFile.exists()) {
+      readHistory();
+    }
+    writeLine(reportFile, false, "dataset" + SEPARATOR + "metric" +
+      SEPARATOR + "runs" + SEPARATOR + "median" + SEPARATOR + "mad" +
+      SEPARATOR + "value" + SEPARATOR + "change_percent" + SEPARATOR +
+      "status");
+  }
+
+  // -- PerformanceHistory API methods --
+
+  /**
+   * Returns a host class derived from the operating system, architecture,
+   * processor count and maximum heap size.
+   */
+  public static String getDefaultHostClass() {
+    return System.getProperty("os.name") + "-" +
+      System.getProperty("os.arch") + "-" +
+      Runtime.getRuntime().availableProcessors() + "cpu-" +
+      (Runtime.getRuntime().maxMemory() >> 20) + "mb";
+  }
+
+  /** Returns the file containing the history for this host class. */
+  public File getHistoryFile() {
+    return historyFile;
+  }
+
+  /** Returns the trend report for the current run. */
+  public File getReportFile() {
+    return reportFile;
+  }
+
+  /**
+   * Compares the given measurements against the previous runs, adds them to
+   * the trend report and appends them to the history.
+   *
+   * @param id the dataset that was measured
+   * @param build the Bio-Formats build that was measured
+   * @param metrics the measured values, indexed by metric name
+   * @return a description of the metrics that regressed,
+   *   or null if none did
+   */
+  public synchronized String addRun(String id, String build,
+    Map<String, Double> metrics)
+  {
+    Map<String, LinkedList<Double>> previous = history.get(id);
+    if (previous == null) {
+      previous = new HashMap<String, LinkedList<Double>>();
+      history.put(id, previous);
+    }
+
+    StringBuilder regressions = new StringBuilder();
+    StringBuilder report = new StringBuilder();
+    StringBuilder line = new StringBuilder();
+    line.append(System.currentTimeMillis());
+    line.append(SEPARATOR).append(build);
+    line.append(SEPARATOR).append(id);
+
+    for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+      String name = metric.getKey();
+      double value = metric.getValue();
+      line.append(SEPARATOR).append(name).append("=").append(value);
+
+      LinkedList<Double> values = previous.get(name);
+      if (values == null) {
+        values = new LinkedList<Double>();
+        previous.put(name, values);
+      }
+
+      String status = "new";
+      double median = Double.NaN;
+      double mad = Double.NaN;
+      double change = Double.NaN;
+      if (values.size() >= MINIMUM_RUNS) {
+        double[] sorted = toArray(values);
+        median = median(sorted);
+        for (int i=0; i<sorted.length; i++) {
+          sorted[i] = Math.abs(sorted[i] - median);
+        }
+        Arrays.sort(sorted);
+        mad = median(sorted);
+        double deviation = Math.max(MAD_SCALE * mad,
+          Math.max(MINIMUM_DEVIATION * median, MINIMUM_ABSOLUTE_DEVIATION));
+        change = median == 0 ? 0 : 100 * (value - median) / median;
+        if (value > median + THRESHOLD * deviation) {
+          status = "regressed";
+          if (regressions.length() > 0) regressions.append("; ");
+          regressions.append(String.format(Locale.ENGLISH,
+            "%s %.1f vs median %.1f (%+.1f%%)",
+            name, value, median, change));
+        }
+        else if (value < median - THRESHOLD * deviation) {
+          status = "improved";
+        }
+        else {
+          status = "ok";
+        }
+      }
+      report.append(id).append(SEPARATOR).append(name);
+      report.append(SEPARATOR).append(values.size());
+      report.append(SEPARATOR).append(median);
+      report.append(SEPARATOR).append(mad);
+      report.append(SEPARATOR).append(value);
+      report.append(SEPARATOR).append(change);
+      report.append(SEPARATOR).append(status);
+      report.append("\n");
+
+      values.add(value);
+      while (values.size() > runs) {
+        values.removeFirst();
+      }
+    }
+
+    try {
+      writeLine(historyFile, true, line.toString());
+      writeLine(reportFile, true,
+        report.substring(0, Math.max(report.length() - 1, 0)));
+    }
+    catch (IOException e) {
+      LOGGER.warn("Could not update performance history for {}", id, e);
+    }
+    return regressions.length() == 0 ? null : regressions.toString();
+  }
+
+  // -- Helper methods --
+
+  /** Reads the most recent values of each metric from the history file. */
+  private void readHistory() throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+      new FileInputStream(historyFile), Constants.ENCODING));
+    int lines = 0;
+    try {
+      String line = in.readLine();
+      while (line != null) {
+        String[] fields = line.split(SEPARATOR);
+        if (fields.length > 3) {
+          Map<String, LinkedList<Double>> metrics = history.get(fields[2]);
+          if (metrics == null) {
+            metrics = new HashMap<String, LinkedList<Double>>();
+            history.put(fields[2], metrics);
+          }
+          for (int i=3; i<fields.length; i++) {
+            int eq = fields[i].indexOf('=');
+            if (eq < 0) continue;
+            try {
+              double value = Double.parseDouble(fields[i].substring(eq + 1));
+              String name = fields[i].substring(0, eq);
+              LinkedList<Double> values = metrics.get(name);
+              if (values == null) {
+                values = new LinkedList<Double>();
+                metrics.put(name, values);
+              }
+              values.add(value);
+              if (values.size() > runs) {
+                values.removeFirst();
+              }
+            }
+            catch (NumberFormatException e) {
+              LOGGER.debug("Ignoring {} in {}", fields[i], historyFile);
+            }
+          }
+          lines++;
+        }
+        line = in.readLine();
+      }
+    }
+    finally {
+      in.close();
+    }
+    LOGGER.info("Read {} performance measurements from {}",
+      lines, historyFile);
+  }
+
+  private static void writeLine(File file, boolean append, String line)
+    throws IOException
+  {
+    FileOutputStream out = new FileOutputStream(file, append);
+    try {
+      out.write((line + "\n").getBytes(Constants.ENCODING));
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static double[] toArray(List<Double> values) {
+    double[] array = new double[values.size()];
+    for (int i=0; i<array.length; i++) {
+      array[i] = values.get(i);
+    }
+    Arrays.sort(array);
+    return array;
+  }
+
+  /** Returns the median of the given sorted values. */
+  private static double median(double[] sorted) {
+    int mid = sorted.length / 2;
+    if (sorted.length % 2 == 1) {
+      return sorted[mid];
+    }
+    return (sorted[mid - 1] + sorted[mid]) / 2;
+  }
+
+}
@@ -0,0 +1,546 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import loci.common.IRandomAccess;
+
+/**
+ * Read-only IRandomAccess that detects sequential access and prefetches the
+ * following blocks of the file on a background thread, so that readers
+ * streaming through a file on a slow (e.g. network) file system do not wait
+ * on every read.
+ *
+ * The file is divided into blocks of a fixed size. Once reads have moved
+ * forward through consecutive blocks, up to a fixed number of blocks ahead
+ * of the file pointer are fetched into a bounded ring. Reads outside the
+ * ring while access is not sequential go directly to the file.
+ * Map it over a file with
+ * {@link loci.common.Location#mapFile(String, IRandomAccess)}.
+ */
+public class ReadAheadHandle implements IRandomAccess {
+
+  // -- Constants --
+
+  /** Default number of blocks held in the ring. */
+  public static final int DEFAULT_BLOCKS = 4;
+
+  /** Number of consecutive block advances before prefetching starts. */
+  private static final int SEQUENTIAL_THRESHOLD = 2;
+
+  /** Threads shared by all handles for fetching blocks. */
+  private static final ExecutorService PREFETCH =
+    Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "read-ahead");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+  // -- Fields --
+
+  private RandomAccessFile file;
+
+  private FileChannel channel;
+
+  private long length;
+
+  private long pointer = 0;
+
+  private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+  private int blockSize;
+
+  private int blocks;
+
+  /** Fetched and in-flight blocks, oldest first. */
+  private Map<Long, Future<byte[]>> ring;
+
+  private long lastBlock = -1;
+
+  private int sequentialBlocks = 0;
+
+  private long prefetchedBlocks = 0;
+
+  private long hitBlocks = 0;
+
+  private byte[] scratch = new byte[8];
+
+  private ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+
+  // -- Constructors --
+
+  public ReadAheadHandle(String file, int blockSize) throws IOException {
+    this(file, blockSize, DEFAULT_BLOCKS);
+  }
+
+  /**
+   * Opens the given file, reading ahead up to the given number of blocks of
+   * the given size.
+   */
+  public ReadAheadHandle(String file, int blockSize, int blocks)
+    throws IOException
+  {
+    if (blockSize <= 0 || blocks <= 0) {
+      throw new IllegalArgumentException("Invalid read-ahead: " + blocks +
+        " blocks of " + blockSize + " bytes");
+    }
+    this.blockSize = blockSize;
+    this.blocks = blocks;
+    this.file = new RandomAccessFile(file, "r");
+    channel = this.file.getChannel();
+    length = channel.size();
+    final int capacity = blocks;
+    ring = new LinkedHashMap<Long, Future<byte[]>>() {
+      @Override
+      protected boolean removeEldestEntry(
+        Map.Entry<Long, Future<byte[]>> eldest)
+      {
+        if (size() > capacity) {
+          eldest.getValue().cancel(false);
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  // -- ReadAheadHandle API methods --
+
+  /** Returns the number of blocks fetched in the background. */
+  public long getPrefetchedBlocks() {
+    return prefetchedBlocks;
+  }
+
+  /** Returns the number of reads satisfied from the ring. */
+  public long getHitBlocks() {
+    return hitBlocks;
+  }
+
+  // -- IRandomAccess API methods --
+
+  @Override
+  public void close() throws IOException {
+    for (Future<byte[]> block : ring.values()) {
+      block.cancel(false);
+    }
+    ring.clear();
+    file.close();
+  }
+
+  @Override
+  public long getFilePointer() throws IOException {
+    return pointer;
+  }
+
+  @Override
+  public long length() throws IOException {
+    return length;
+  }
+
+  @Override
+  public ByteOrder getOrder() {
+    return order;
+  }
+
+  @Override
+  public void setOrder(ByteOrder order) {
+    this.order = order;
+    scratchBuffer.order(order);
+  }
+
+  @Override
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (pointer >= length) {
+      return -1;
+    }
+    int n = (int) Math.min(len, length - pointer);
+    copy(b, off, n);
+    return n;
+  }
+
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    return read(buffer, 0, buffer.capacity());
+  }
+
+  @Override
+  public int read(ByteBuffer buffer, int off, int len) throws IOException {
+    byte[] b = new byte[len];
+    int n = read(b, 0, len);
+    if (n > 0) {
+      buffer.position(off);
+      buffer.put(b, 0, n);
+    }
+    return n;
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    pointer = pos;
+  }
+
+  @Override
+  public void write(ByteBuffer buf) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void write(ByteBuffer buf, int off, int len) throws IOException {
+    throw readOnly();
+  }
+
+  // -- DataInput API methods --
+
+  @Override
+  public void readFully(byte[] b) throws IOException {
+    readFully(b, 0, b.length);
+  }
+
+  @Override
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    if (pointer + len > length) {
+      throw new EOFException();
+    }
+    copy(b, off, len);
+  }
+
+  @Override
+  public int skipBytes(int n) throws IOException {
+    int skipped = (int) Math.max(0, Math.min(n, length - pointer));
+    pointer += skipped;
+    return skipped;
+  }
+
+  @Override
+  public boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  @Override
+  public byte readByte() throws IOException {
+    readFully(scratch, 0, 1);
+    return scratch[0];
+  }
+
+  @Override
+  public int readUnsignedByte() throws IOException {
+    return readByte() & 0xff;
+  }
+
+  @Override
+  public short readShort() throws IOException {
+    readFully(scratch, 0, 2);
+    return scratchBuffer.getShort(0);
+  }
+
+  @Override
+  public int readUnsignedShort() throws IOException {
+    return readShort() & 0xffff;
+  }
+
+  @Override
+  public char readChar() throws IOException {
+    return (char) readShort();
+  }
+
+  @Override
+  public int readInt() throws IOException {
+    readFully(scratch, 0, 4);
+    return scratchBuffer.getInt(0);
+  }
+
+  @Override
+  public long readLong() throws IOException {
+    readFully(scratch, 0, 8);
+    return scratchBuffer.getLong(0);
+  }
+
+  @Override
+  public float readFloat() throws IOException {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  @Override
+  public double readDouble() throws IOException {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  @Override
+  public String readLine() throws IOException {
+    if (pointer >= length) {
+      return null;
+    }
+    StringBuilder line = new StringBuilder();
+    while (pointer < length) {
+      int c = readUnsignedByte();
+      if (c == '\n') {
+        break;
+      }
+      if (c == '\r') {
+        if (pointer < length && readUnsignedByte() != '\n') {
+          pointer--;
+        }
+        break;
+      }
+      line.append((char) c);
+    }
+    return line.toString();
+  }
+
+  @Override
+  public String readUTF() throws IOException {
+    return DataInputStream.readUTF(this);
+  }
+
+  // -- DataOutput API methods --
+
+  @Override
+  public void write(int b) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void write(byte[] b) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeBoolean(boolean v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeByte(int v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeShort(int v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeChar(int v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeInt(int v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeLong(long v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeFloat(float v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeDouble(double v) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeBytes(String s) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeChars(String s) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeUTF(String s) throws IOException {
+    throw readOnly();
+  }
+
+  // -- Helper methods --
+
+  /** Copies len bytes from the file pointer, which must all exist. */
+  private void copy(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      long index = pointer / blockSize;
+      int pos = (int) (pointer % blockSize);
+      Future<byte[]> block = getBlock(index);
+      byte[] data = block == null ? null : get(block);
+      int count;
+      if (block == null) {
+        // not sequential, so read directly
+        count = len;
+        readFully(ByteBuffer.wrap(b, off, count), pointer);
+
+        // count the blocks that the read crossed, so that reads larger
+        // than a block are still seen as sequential
+        long endBlock = (pointer + count - 1) / blockSize;
+        sequentialBlocks +=
+          (int) Math.min(endBlock - index, SEQUENTIAL_THRESHOLD);
+        lastBlock = endBlock;
+      }
+      else if (data == null) {
+        // the block was evicted from the ring before it could be used
+        count = Math.min(len, blockSize - pos);
+        readFully(ByteBuffer.wrap(b, off, count), pointer);
+      }
+      else {
+        count = Math.min(len, data.length - pos);
+        System.arraycopy(data, pos, b, off, count);
+      }
+      pointer += count;
+      off += count;
+      len -= count;
+    }
+  }
+
+  /**
+   * Records an access to the given block, starting read-ahead if access is
+   * sequential. Returns the block if it is in the ring, or null if it should
+   * be read directly.
+   */
+  private Future<byte[]> getBlock(long index) {
+    if (index == lastBlock + 1) {
+      sequentialBlocks++;
+    }
+    else if (index != lastBlock) {
+      sequentialBlocks = 0;
+    }
+    lastBlock = index;
+
+    Future<byte[]> block = ring.get(index);
+    if (sequentialBlocks >= SEQUENTIAL_THRESHOLD) {
+      long lastIndex = (length - 1) / blockSize;
+      for (long i=index; i<index + blocks && i<=lastIndex; i++) {
+        if (!ring.containsKey(i)) {
+          ring.put(i, fetch(i));
+          if (i > index) {
+            prefetchedBlocks++;
+          }
+        }
+      }
+      if (block == null) {
+        return ring.get(index);
+      }
+    }
+    if (block != null) {
+      hitBlocks++;
+    }
+    return block;
+  }
+
+  /** Starts fetching the given block in the background. */
+  private Future<byte[]> fetch(final long index) {
+    return PREFETCH.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        long offset = index * blockSize;
+        byte[] data = new byte[(int) Math.min(blockSize, length - offset)];
+        readFully(ByteBuffer.wrap(data), offset);
+        return data;
+      }
+    });
+  }
+
+  /**
+   * Waits for the given block to be fetched. Returns null if the fetch was
+   * cancelled because the block was evicted from the ring.
+   */
+  private byte[] get(Future<byte[]> block) throws IOException {
+    try {
+      return block.get();
+    }
+    catch (CancellationException e) {
+      return null;
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading ahead");
+    }
+  }
+
+  /**
+   * Fills the buffer from the given offset in the file. Positional reads
+   * do not move the channel's position, so this is safe to call from the
+   * prefetch threads.
+   */
+  private void readFully(ByteBuffer buf, long offset) throws IOException {
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, offset);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      offset += n;
+    }
+  }
+
+  private static IOException readOnly() {
+    return new IOException("Read-ahead files are read-only");
+  }
+
+}
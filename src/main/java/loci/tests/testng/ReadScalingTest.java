@@ -0,0 +1,219 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Measures how tile reading throughput scales with the number of threads.
+ * For K = 1, 2, 4, ... up to the number of available processors, the
+ * dataset is opened in K independent readers, each of which reads the same
+ * number of tiles from its own thread. The aggregate tiles per second and
+ * the speedup relative to a single thread are logged for each K.
+ *
+ * Readers that share static state or synchronize on a shared codec show up
+ * as a flat speedup curve.
+ */
+public class ReadScalingTest {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ReadScalingTest.class);
+
+  /** Default number of tiles read by each thread. */
+  private static final int DEFAULT_TILES = 256;
+
+  // -- Fields --
+
+  private String id;
+
+  private String filename;
+
+  /** Maximum number of concurrent readers. */
+  private int maxThreads;
+
+  /** Number of tiles read by each thread. */
+  private int tilesPerThread;
+
+  // -- Setup methods --
+
+  @Parameters({"id"})
+  @BeforeClass
+  public void init(String id) throws Exception {
+    this.id = id;
+    filename = new File(id).getName();
+
+    maxThreads = Math.max(1, TestTools.getIntProperty(
+      "testng.scaling-threads", Runtime.getRuntime().availableProcessors()));
+    tilesPerThread = Math.max(1,
+      TestTools.getIntProperty("testng.scaling-tiles", DEFAULT_TILES));
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testReadScaling() throws Exception {
+    // warm up class loading and the JIT before timing anything
+    measure(1);
+
+    List<Integer> threadCounts = new ArrayList<Integer>();
+    for (int k = 1; k < maxThreads; k *= 2) {
+      threadCounts.add(k);
+    }
+    threadCounts.add(maxThreads);
+
+    double baseline = 0;
+    LOGGER.info("{}: threads\ttiles/s\tspeedup\tefficiency", filename);
+    for (int k : threadCounts) {
+      double throughput = measure(k);
+      if (k == 1) {
+        baseline = throughput;
+      }
+      double speedup = baseline > 0 ? throughput / baseline : 0;
+      LOGGER.info("{}: {}\t{}\t{}\t{}", new Object[] {filename, k,
+        String.format(Locale.ENGLISH, "%.1f", throughput),
+        String.format(Locale.ENGLISH, "%.2f", speedup),
+        String.format(Locale.ENGLISH, "%.2f", speedup / k)});
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Reads tiles concurrently with the given number of independent readers,
+   * and returns the aggregate throughput in tiles per second. Readers are
+   * initialized before timing starts.
+   */
+  private double measure(int threads) throws Exception {
+    List<IFormatReader> readers = new ArrayList<IFormatReader>();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      for (int i=0; i<threads; i++) {
+        IFormatReader reader = new ImageReader();
+        reader.setId(id);
+        readers.add(reader);
+      }
+
+      final CountDownLatch ready = new CountDownLatch(threads);
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int i=0; i<threads; i++) {
+        results.add(pool.submit(
+          new TileReader(readers.get(i), i, threads, ready, start)));
+      }
+      ready.await();
+      long t0 = System.nanoTime();
+      start.countDown();
+      int tiles = 0;
+      for (Future<Integer> result : results) {
+        tiles += result.get();
+      }
+      long t1 = System.nanoTime();
+      return tiles / ((t1 - t0) / 1000000000.0);
+    }
+    finally {
+      pool.shutdown();
+      for (IFormatReader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Reads tiles of optimal size from the first series, cycling through the
+   * planes. Each thread starts at a different tile so that the threads are
+   * not always reading the same region at the same time.
+   */
+  class TileReader implements Callable<Integer> {
+
+    private IFormatReader reader;
+    private CountDownLatch ready;
+    private CountDownLatch start;
+    private int sizeX, sizeY, tileWidth, tileHeight, tilesWide;
+    private int tilesPerPlane, totalTiles, firstTile;
+    private byte[] buf;
+
+    public TileReader(IFormatReader reader, int index, int threads,
+      CountDownLatch ready, CountDownLatch start)
+    {
+      this.reader = reader;
+      this.ready = ready;
+      this.start = start;
+
+      reader.setSeries(0);
+      sizeX = reader.getSizeX();
+      sizeY = reader.getSizeY();
+      tileWidth = Math.min(reader.getOptimalTileWidth(), sizeX);
+      tileHeight = Math.min(reader.getOptimalTileHeight(), sizeY);
+      tilesWide = (sizeX + tileWidth - 1) / tileWidth;
+      int tilesHigh = (sizeY + tileHeight - 1) / tileHeight;
+      tilesPerPlane = tilesWide * tilesHigh;
+      totalTiles = tilesPerPlane * reader.getImageCount();
+      firstTile = (int) ((long) totalTiles * index / threads);
+      buf = new byte[FormatTools.getPlaneSize(reader, tileWidth, tileHeight)];
+    }
+
+    @Override
+    public Integer call() throws Exception {
+      ready.countDown();
+      start.await();
+
+      int tile = firstTile;
+      for (int i=0; i<tilesPerThread; i++) {
+        int no = tile / tilesPerPlane;
+        int x = (tile % tilesPerPlane % tilesWide) * tileWidth;
+        int y = (tile % tilesPerPlane / tilesWide) * tileHeight;
+        reader.openBytes(no, buf, x, y, Math.min(tileWidth, sizeX - x),
+          Math.min(tileHeight, sizeY - y));
+        tile = (tile + 1) % totalTiles;
+      }
+      return tilesPerThread;
+    }
+  }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import loci.common.DataTools;
+import loci.formats.IFormatReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selects the datasets affected by changes to a set of reader classes.
+ * A dataset is selected if its configured reader is one of the changed
+ * readers, or if one of the changed readers claims any of the dataset's used
+ * files, as that would change the outcome of
+ * {@link FormatReaderTest#testIsThisType()}.
+ *
+ * The changed readers are given either as a comma or whitespace separated
+ * list of class names, or as the path to a file containing such a list. The
+ * file may also be the output of <code>git diff</code> (with or without
+ * <code>--name-only</code>) or a listing of the classes in a formats jar; any
+ * <code>*Reader.java</code> or <code>*Reader.class</code> path is used. Only
+ * the file paths of a full diff are considered, not the changed lines.
+ */
+public class ReaderSelection {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ReaderSelection.class);
+
+  // -- Fields --
+
+  /** Short class names of the changed readers. */
+  private Set<String> readerNames = new LinkedHashSet<String>();
+
+  /** Instances of the changed readers that could be found. */
+  private List<IFormatReader> readers = new ArrayList<IFormatReader>();
+
+  // -- Constructor --
+
+  /**
+   * Constructs a selection from a list of reader class names, or from
+   * the path to a file listing the changed readers.
+   */
+  public ReaderSelection(String readerList) throws IOException {
+    String list = readerList;
+    if (new File(readerList).isFile()) {
+      list = DataTools.readFile(readerList);
+    }
+    if (isDiff(list)) {
+      // only the file paths of a full diff name changed readers; class
+      // names in the changed lines do not
+      StringBuilder paths = new StringBuilder();
+      for (String line : list.split("\r?\n")) {
+        if (line.startsWith("diff --git ") || line.startsWith("+++ ")) {
+          paths.append(line).append('\n');
+        }
+      }
+      list = paths.toString();
+    }
+    for (String token : list.split("[\\s,]+")) {
+      String name = getReaderName(token);
+      if (name != null) {
+        readerNames.add(name);
+      }
+    }
+    createReaders();
+  }
+
+  // -- ReaderSelection API methods --
+
+  /** Returns the short class names of the changed readers. */
+  public Set<String> getReaderNames() {
+    return readerNames;
+  }
+
+  /**
+   * Returns true if the given dataset is configured to be read by one of the
+   * changed readers, or if one of the changed readers claims any of its used
+   * files.
+   *
+   * @param config the dataset's configuration, or null if not configured
+   * @param usedFiles the dataset's used files
+   */
+  public boolean isSelected(Configuration config, String[] usedFiles) {
+    if (config != null && readerNames.contains(config.getReader())) {
+      return true;
+    }
+    for (String file : usedFiles) {
+      for (IFormatReader reader : readers) {
+        if (reader.isThisType(file)) {
+          LOGGER.debug("{} claims {}", TestTools.shortClassName(reader), file);
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // -- Helper methods --
+
+  /** Returns true if the given text is the output of a full git diff. */
+  private static boolean isDiff(String list) {
+    for (String line : list.split("\r?\n")) {
+      if (line.startsWith("diff --git ") || line.startsWith("@@ ")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Extracts the short reader class name from a class name or from a
+   * source/class file path. Returns null if the token does not name a reader.
+   */
+  private static String getReaderName(String token) {
+    String name = token;
+    boolean isPath = name.indexOf('/') >= 0 || name.indexOf('\\') >= 0;
+    name = name.substring(Math.max(name.lastIndexOf('/'),
+      name.lastIndexOf('\\')) + 1);
+    if (name.endsWith(".java") || name.endsWith(".class")) {
+      name = name.substring(0, name.lastIndexOf('.'));
+    }
+    else if (isPath) {
+      return null;
+    }
+    if (name.indexOf('$') >= 0) {
+      name = name.substring(0, name.indexOf('$'));
+    }
+    name = name.substring(name.lastIndexOf('.') + 1);
+    if (name.matches("[A-Z][A-Za-z0-9_]*Reader")) {
+      return name;
+    }
+    return null;
+  }
+
+  /** Instantiates each of the changed readers that is on the class path. */
+  private void createReaders() {
+    for (String name : readerNames) {
+      IFormatReader reader = TestTools.createReader(name);
+      if (reader != null) {
+        readers.add(reader);
+      }
+      else {
+        LOGGER.info("Only datasets configured with {} will be selected", name);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import loci.common.Constants;
+import loci.formats.FormatTools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.ITestResult;
+
+/**
+ * Append-only journal of the datasets that have been completely tested.
+ * One line is written per dataset as soon as all of its tests have finished,
+ * so that an interrupted run can be resumed without testing the same
+ * datasets again. Entries written by a different Bio-Formats build are
+ * ignored when deciding whether a dataset has already been completed.
+ *
+ * Each line contains the following tab-separated fields: build, dataset,
+ * passed test count, failed test count, skipped test count and the
+ * space-separated names of the failed tests.
+ */
+public class ResultsJournal {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ResultsJournal.class);
+
+  private static final String SEPARATOR = "\t";
+
+  // -- Fields --
+
+  private File file;
+
+  private String build;
+
+  /** Datasets completed by the current build. */
+  private Set<String> completed = new HashSet<String>();
+
+  /** Results of the datasets that are currently being tested. */
+  private Map<String, DatasetResult> results =
+    new HashMap<String, DatasetResult>();
+
+  // -- Constructor --
+
+  /**
+   * Opens the journal stored in the given file, creating it if necessary.
+   * Datasets already completed with the current Bio-Formats build are
+   * read from the existing entries.
+   */
+  public ResultsJournal(String journalFile) throws IOException {
+    file = new File(journalFile).getAbsoluteFile();
+    build = getBuild();
+    if (file.exists()) {
+      readEntries();
+    }
+    else if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
+    }
+  }
+
+  // -- ResultsJournal API methods --
+
+  /** Returns a string identifying the Bio-Formats build under test. */
+  public static String getBuild() {
+    return FormatTools.VERSION + "-" + FormatTools.VCS_REVISION;
+  }
+
+  /** Returns the file backing this journal. */
+  public File getFile() {
+    return file;
+  }
+
+  /** Returns the number of datasets completed by the current build. */
+  public synchronized int getCompletedCount() {
+    return completed.size();
+  }
+
+  /**
+   * Returns true if the given dataset was completely tested
+   * by the current build.
+   */
+  public synchronized boolean isCompleted(String id) {
+    return completed.contains(id);
+  }
+
+  /** Records the outcome of a single test of the given dataset. */
+  public synchronized void record(String id, String testName, int status) {
+    DatasetResult result = results.get(id);
+    if (result == null) {
+      result = new DatasetResult();
+      results.put(id, result);
+    }
+    switch (status) {
+      case ITestResult.SUCCESS:
+        result.passed++;
+        break;
+      case ITestResult.FAILURE:
+        result.failed++;
+        result.failures.append(result.failures.length() > 0 ? " " : "");
+        result.failures.append(testName);
+        break;
+      case ITestResult.SKIP:
+        result.skipped++;
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Marks the given dataset as completed, and appends its results to the
+   * journal. The entry is synchronized to disk before returning.
+   */
+  public synchronized void complete(String id) {
+    DatasetResult result = results.remove(id);
+    if (result == null) {
+      result = new DatasetResult();
+    }
+    StringBuilder line = new StringBuilder();
+    line.append(build);
+    line.append(SEPARATOR).append(id);
+    line.append(SEPARATOR).append(result.passed);
+    line.append(SEPARATOR).append(result.failed);
+    line.append(SEPARATOR).append(result.skipped);
+    line.append(SEPARATOR).append(result.failures);
+    line.append("\n");
+
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(file, true);
+      out.write(line.toString().getBytes(Constants.ENCODING));
+      out.flush();
+      out.getFD().sync();
+      completed.add(id);
+    }
+    catch (IOException e) {
+      LOGGER.warn("Could not append {} to journal {}", id, file, e);
+    }
+    finally {
+      if (out != null) {
+        try {
+          out.close();
+        }
+        catch (IOException e) { }
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Reads the existing journal entries. Incomplete lines, e.g. from a run
+   * that was killed while writing, are ignored.
+   */
+  private void readEntries() throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+      new FileInputStream(file), Constants.ENCODING));
+    try {
+      String line = in.readLine();
+      while (line != null) {
+        String[] fields = line.split(SEPARATOR, -1);
+        if (fields.length == 6 && fields[0].equals(build)) {
+          completed.add(fields[1]);
+        }
+        line = in.readLine();
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    // terminate any partially written entry,
+    // so that it is not merged with the next one
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long length = raf.length();
+      if (length > 0) {
+        raf.seek(length - 1);
+        if (raf.read() != '\n') {
+          raf.write('\n');
+        }
+      }
+    }
+    finally {
+      raf.close();
+    }
+    LOGGER.info("{} datasets completed by build {} in {}",
+      new Object[] {completed.size(), build, file});
+  }
+
+  // -- Helper classes --
+
+  /** Test counts for a single dataset. */
+  private static class DatasetResult {
+    int passed = 0;
+    int failed = 0;
+    int skipped = 0;
+    StringBuilder failures = new StringBuilder();
+  }
+
+}
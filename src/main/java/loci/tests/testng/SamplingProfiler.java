@@ -0,0 +1,322 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import loci.common.Constants;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically samples the stacks of the threads running tests, and
+ * attributes each sample to the dataset, test method and reader class that
+ * the thread is working on.
+ *
+ * Enabled by setting testng.sampling-profile to a directory; the sampling
+ * interval in milliseconds is set by testng.sampling-interval. The samples
+ * are written in the collapsed stack format used by flame graph tools, with
+ * one line per distinct stack followed by its sample count. all.collapsed
+ * contains every sample, with the reader, dataset and test as the outermost
+ * frames; each &lt;reader&gt;.collapsed contains the samples for a single
+ * reader, with the dataset and test as the outermost frames.
+ *
+ * To bound the memory used over long runs, only the innermost
+ * {@link #MAX_DEPTH} frames of each stack are kept, and once
+ * {@link #MAX_STACKS} distinct stacks have been recorded, samples with new
+ * stacks are only counted for their dataset and test.
+ */
+public class SamplingProfiler implements Runnable {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(SamplingProfiler.class);
+
+  /** Default interval between samples, in milliseconds. */
+  private static final int DEFAULT_INTERVAL = 10;
+
+  /** Number of innermost frames kept from each stack. */
+  public static final int MAX_DEPTH = 64;
+
+  /** Number of distinct stacks recorded before new ones are merged. */
+  public static final int MAX_STACKS = 10000;
+
+  /** Frame replacing the stacks that are not recorded separately. */
+  private static final String OTHER_STACKS = "[other stacks]";
+
+  /** Frame replacing the outer frames of truncated stacks. */
+  private static final String TRUNCATED = "[truncated]";
+
+  // -- Static fields --
+
+  private static SamplingProfiler profiler;
+
+  private static boolean initialized = false;
+
+  // -- Fields --
+
+  private File reportDir;
+
+  private int interval;
+
+  private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  /** What each registered thread is currently doing, by thread ID. */
+  private Map<Long, Context> contexts = new ConcurrentHashMap<Long, Context>();
+
+  /** Sample counts by reader, then by collapsed stack. */
+  private Map<String, Map<String, Long>> samples =
+    new TreeMap<String, Map<String, Long>>();
+
+  /** Number of distinct stacks in samples. */
+  private int stackCount = 0;
+
+  // -- Constructor --
+
+  public SamplingProfiler(String reportDir, int interval) {
+    this.reportDir = new File(reportDir);
+    this.interval = interval;
+  }
+
+  // -- Static utility methods --
+
+  /**
+   * Returns the profiler configured by testng.sampling-profile,
+   * or null if tests are not being profiled. The first call starts sampling.
+   */
+  public static synchronized SamplingProfiler getProfiler() {
+    if (!initialized) {
+      String dir = TestTools.getProperty("testng.sampling-profile");
+      if (dir != null && !dir.isEmpty()) {
+        int interval =
+          TestTools.getIntProperty("testng.sampling-interval", DEFAULT_INTERVAL);
+        LOGGER.info("testng.sampling-profile = {}, interval {} ms",
+          dir, interval);
+        profiler = new SamplingProfiler(dir, interval);
+        Thread sampler = new Thread(profiler, "sampling-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+      }
+      initialized = true;
+    }
+    return profiler;
+  }
+
+  // -- SamplingProfiler API methods --
+
+  /**
+   * Attributes samples of the current thread to the given dataset, test
+   * and reader, until {@link #exit()} is called. The reader may be null if
+   * it is not yet known. Calls may be nested, e.g. for a setId within a
+   * test method.
+   */
+  public void enter(String dataset, String test, String reader) {
+    long thread = Thread.currentThread().getId();
+    Context context = new Context(dataset, test, reader);
+    context.previous = contexts.get(thread);
+    contexts.put(thread, context);
+  }
+
+  /** Updates the reader for the current thread's samples. */
+  public void setReader(String reader) {
+    Context context = contexts.get(Thread.currentThread().getId());
+    if (context != null) {
+      context.reader = reader;
+    }
+  }
+
+  /**
+   * Stops attributing samples of the current thread to the context given by
+   * the matching call to {@link #enter}, returning to the enclosing context
+   * if there is one.
+   */
+  public void exit() {
+    long thread = Thread.currentThread().getId();
+    Context context = contexts.remove(thread);
+    if (context != null && context.previous != null) {
+      contexts.put(thread, context.previous);
+    }
+  }
+
+  /** Writes the collapsed stacks recorded so far. */
+  public void writeReport() {
+    if (!reportDir.exists()) {
+      reportDir.mkdirs();
+    }
+    Map<String, Map<String, Long>> copy =
+      new TreeMap<String, Map<String, Long>>();
+    synchronized (samples) {
+      for (Map.Entry<String, Map<String, Long>> entry : samples.entrySet()) {
+        copy.put(entry.getKey(),
+          new TreeMap<String, Long>(entry.getValue()));
+      }
+    }
+
+    PrintWriter all = null;
+    try {
+      all = open("all.collapsed");
+      for (Map.Entry<String, Map<String, Long>> entry : copy.entrySet()) {
+        String reader = entry.getKey();
+        PrintWriter out = open(reader + ".collapsed");
+        try {
+          for (Map.Entry<String, Long> stack : entry.getValue().entrySet()) {
+            out.println(stack.getKey() + " " + stack.getValue());
+            all.println(reader + ";" + stack.getKey() + " " + stack.getValue());
+          }
+        }
+        finally {
+          out.close();
+        }
+      }
+    }
+    catch (IOException e) {
+      LOGGER.warn("Could not write sampling profile to {}", reportDir, e);
+    }
+    finally {
+      if (all != null) {
+        all.close();
+      }
+    }
+  }
+
+  // -- Runnable API methods --
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        Thread.sleep(interval);
+      }
+      catch (InterruptedException e) {
+        return;
+      }
+      sample();
+    }
+  }
+
+  // -- Helper methods --
+
+  private void sample() {
+    Map<Long, Context> current = new HashMap<Long, Context>(contexts);
+    if (current.isEmpty()) {
+      return;
+    }
+    long[] ids = new long[current.size()];
+    int index = 0;
+    for (Long id : current.keySet()) {
+      ids[index++] = id;
+    }
+    ThreadInfo[] infos = threads.getThreadInfo(ids, MAX_DEPTH);
+    for (ThreadInfo info : infos) {
+      if (info == null) {
+        continue;
+      }
+      Context context = current.get(info.getThreadId());
+      StackTraceElement[] stack = info.getStackTrace();
+      if (context == null || stack.length == 0) {
+        continue;
+      }
+      StringBuilder collapsed = new StringBuilder();
+      collapsed.append(frame(context.dataset));
+      collapsed.append(';');
+      collapsed.append(context.test);
+      String prefix = collapsed.toString();
+      if (stack.length >= MAX_DEPTH) {
+        collapsed.append(';');
+        collapsed.append(TRUNCATED);
+      }
+      // the root of the stack is the last element
+      for (int i=stack.length-1; i>=0; i--) {
+        collapsed.append(';');
+        collapsed.append(stack[i].getClassName());
+        collapsed.append('.');
+        collapsed.append(stack[i].getMethodName());
+      }
+      String reader = context.reader == null ? "unknown" : context.reader;
+      String key = collapsed.toString();
+      synchronized (samples) {
+        Map<String, Long> counts = samples.get(reader);
+        if (counts == null) {
+          counts = new HashMap<String, Long>();
+          samples.put(reader, counts);
+        }
+        Long count = counts.get(key);
+        if (count == null && stackCount >= MAX_STACKS) {
+          key = prefix + ";" + OTHER_STACKS;
+          count = counts.get(key);
+        }
+        if (count == null) {
+          stackCount++;
+        }
+        counts.put(key, count == null ? 1 : count + 1);
+      }
+    }
+  }
+
+  /**
+   * Returns the given name with the characters that separate frames and
+   * counts in the collapsed format replaced.
+   */
+  private static String frame(String name) {
+    return name.replace(';', '_').replace(' ', '_');
+  }
+
+  private PrintWriter open(String name) throws IOException {
+    return new PrintWriter(new OutputStreamWriter(
+      new FileOutputStream(new File(reportDir, name)), Constants.ENCODING));
+  }
+
+  // -- Helper classes --
+
+  /** The dataset, test and reader that a thread is working on. */
+  private static class Context {
+    String dataset;
+    String test;
+    volatile String reader;
+    Context previous;
+
+    Context(String dataset, String test, String reader) {
+      this.dataset = dataset;
+      this.test = test;
+      this.reader = reader;
+    }
+  }
+
+}
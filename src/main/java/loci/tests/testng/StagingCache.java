@@ -0,0 +1,408 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import loci.common.Location;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies the files of each dataset to a local cache directory before it is
+ * tested, so that readers doing small random reads are not slowed down by a
+ * network file system. The copies are substituted for the original files
+ * with {@link Location#mapId(String, String)}, so the tests open datasets by
+ * their original names. Readers that resolve file names through
+ * {@link Location}, as most do, report the local copies from
+ * getUsedFiles(); {@link #getOriginalPath(String)} maps them back.
+ *
+ * The copies are kept in a directory tree mirroring the original absolute
+ * paths, and are reused by later runs if their size and modification time
+ * still match. Copies already in the directory count towards the size
+ * limit, and each file counts once however many datasets share it. When a
+ * dataset would not fit within the limit, copies that no staged dataset uses
+ * are removed first, then the least recently used datasets whose tests are
+ * not running; datasets that still do not fit are not staged, and are tried
+ * again if they are staged later. The cache directory should be dedicated
+ * to this purpose.
+ */
+public class StagingCache {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(StagingCache.class);
+
+  /** Default size limit, in MB. */
+  public static final int DEFAULT_SIZE_MB = 10240;
+
+  // -- Fields --
+
+  private File directory;
+
+  private long limit;
+
+  /** Staged datasets, least recently used first. */
+  private LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /** Bytes of all copies in the cache, and of copies being made. */
+  private long totalBytes = 0;
+
+  /** Size of each copy in the cache, including those of earlier runs. */
+  private LinkedHashMap<File, Long> sizes = new LinkedHashMap<File, Long>();
+
+  /** Number of staged datasets using each local copy. */
+  private Map<File, Integer> references = new HashMap<File, Integer>();
+
+  /** Original file name of each mapped local copy. */
+  private Map<String, String> originals = new HashMap<String, String>();
+
+  // -- Constructor --
+
+  public StagingCache(File directory, long limit) {
+    this.directory = directory.getAbsoluteFile();
+    this.limit = limit;
+    synchronized (this) {
+      scan(this.directory);
+      if (totalBytes > 0) {
+        LOGGER.info("Found {} bytes of earlier copies in {}", totalBytes,
+          this.directory);
+      }
+      evict(0);
+    }
+  }
+
+  // -- StagingCache API methods --
+
+  /**
+   * Copies the given files of a dataset to the cache, unless another thread
+   * is already doing so, and waits for the copies. Returns the local copy of
+   * each original file; files that could not be copied are omitted.
+   * The copies may be removed again before the dataset is tested.
+   */
+  public Map<String, String> stage(String id, String[] files) {
+    return stage(id, files, false);
+  }
+
+  /**
+   * Stages the given files of a dataset, and maps each original file to its
+   * local copy for the current thread. The copies are kept until
+   * {@link #release(String)} is called for the dataset.
+   */
+  public void map(String id, String[] files) {
+    Map<String, String> copies = stage(id, files, true);
+    // the dataset may have been staged with differently written paths
+    Map<String, String> byPath = new HashMap<String, String>();
+    for (Map.Entry<String, String> copy : copies.entrySet()) {
+      byPath.put(new File(copy.getKey()).getAbsolutePath(), copy.getValue());
+    }
+    Set<String> names = new LinkedHashSet<String>(copies.keySet());
+    names.addAll(Arrays.asList(files));
+    for (String name : names) {
+      String local = byPath.get(new File(name).getAbsolutePath());
+      if (local != null) {
+        Location.mapId(name, local);
+        synchronized (this) {
+          // the names given by the caller are put last, so they win
+          originals.put(local, name);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the original name of the given file if it is a local copy
+   * mapped by {@link #map(String, String[])}, and the name unchanged
+   * otherwise.
+   */
+  public synchronized String getOriginalPath(String path) {
+    String original = originals.get(new File(path).getAbsolutePath());
+    return original == null ? path : original;
+  }
+
+  /**
+   * Notes that the given dataset's tests have finished, so that its files
+   * may be removed from the cache.
+   */
+  public void release(String id) {
+    synchronized (this) {
+      Entry entry = entries.get(id);
+      if (entry != null) {
+        entry.inUse = false;
+      }
+    }
+    evict(0);
+  }
+
+  // -- Helper methods --
+
+  private Map<String, String> stage(final String id, final String[] files,
+    boolean use)
+  {
+    Entry entry;
+    boolean run = false;
+    synchronized (this) {
+      entry = entries.get(id);
+      if (entry == null) {
+        final Entry newEntry = new Entry();
+        newEntry.task = new FutureTask<Map<String, String>>(
+          new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() throws IOException {
+              return copy(id, newEntry, files);
+            }
+          });
+        entries.put(id, newEntry);
+        entry = newEntry;
+        run = true;
+      }
+      if (use) {
+        entry.inUse = true;
+      }
+    }
+    if (run) {
+      entry.task.run();
+      evict(0);
+    }
+    try {
+      return entry.task.get();
+    }
+    catch (ExecutionException e) {
+      LOGGER.warn("Could not stage {}", id, e.getCause());
+    }
+    catch (InterruptedException e) {
+      LOGGER.warn("Interrupted while staging {}", id, e);
+    }
+    return Collections.emptyMap();
+  }
+
+  private Map<String, String> copy(String id, Entry entry, String[] files)
+    throws IOException
+  {
+    Map<String, String> copies = new LinkedHashMap<String, String>();
+    Map<String, File> targets = new LinkedHashMap<String, File>();
+    for (String f : files) {
+      File source = new File(f).getAbsoluteFile();
+      if (source.isFile()) {
+        // drive letters cannot appear within a path
+        targets.put(f, new File(directory, source.getPath().replace(':', '_')));
+      }
+    }
+
+    long bytes = 0;
+    synchronized (this) {
+      // copies that are already in the cache only count for the difference
+      Set<File> counted = new HashSet<File>();
+      for (Map.Entry<String, File> target : targets.entrySet()) {
+        if (counted.add(target.getValue())) {
+          Long size = sizes.get(target.getValue());
+          long length = new File(target.getKey()).getAbsoluteFile().length();
+          bytes += Math.max(0, length - (size == null ? 0 : size));
+        }
+      }
+      // claim the copies first, so that evicting cannot remove them
+      entry.files.putAll(targets);
+      addReferences(entry);
+      evict(bytes);
+      if (totalBytes + bytes > limit) {
+        removeReferences(entry, false);
+        entry.files.clear();
+        entries.remove(id);
+        LOGGER.info("Not staging {} bytes; {} of {} bytes in use",
+          new Object[] {bytes, totalBytes, limit});
+        return copies;
+      }
+      // reserve the space before copying, so that concurrent copies fit
+      totalBytes += bytes;
+    }
+
+    long start = System.currentTimeMillis();
+    try {
+      for (Map.Entry<String, File> copy : targets.entrySet()) {
+        File source = new File(copy.getKey()).getAbsoluteFile();
+        File target = copy.getValue();
+        if (!target.exists() || target.length() != source.length() ||
+          target.lastModified() != source.lastModified())
+        {
+          target.getParentFile().mkdirs();
+          // datasets sharing the file may be copying it at the same time
+          File tmp = File.createTempFile(target.getName() + ".tmp", ".part",
+            target.getParentFile());
+          Files.copy(source.toPath(), tmp.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.COPY_ATTRIBUTES);
+          Files.move(tmp.toPath(), target.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+        }
+        copies.put(copy.getKey(), target.getPath());
+      }
+    }
+    finally {
+      synchronized (this) {
+        totalBytes -= bytes;
+        for (File target : new HashSet<File>(targets.values())) {
+          updateSize(target);
+        }
+      }
+    }
+    LOGGER.debug("Staged {} bytes in {} ms", bytes,
+      System.currentTimeMillis() - start);
+    return copies;
+  }
+
+  /**
+   * Removes copies that no staged dataset uses, then the least recently
+   * used datasets that are no longer in use, until the given number of
+   * bytes fits within the cache's size limit.
+   */
+  private synchronized void evict(long needed) {
+    Iterator<Map.Entry<File, Long>> copies = sizes.entrySet().iterator();
+    while (totalBytes + needed > limit && copies.hasNext()) {
+      Map.Entry<File, Long> next = copies.next();
+      if (!references.containsKey(next.getKey())) {
+        delete(next.getKey());
+        totalBytes -= next.getValue();
+        copies.remove();
+      }
+    }
+
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (totalBytes + needed > limit && it.hasNext()) {
+      Map.Entry<String, Entry> next = it.next();
+      Entry entry = next.getValue();
+      if (entry.inUse || !entry.task.isDone()) {
+        continue;
+      }
+      removeReferences(entry, true);
+      it.remove();
+      LOGGER.debug("Removed {} from the staging cache", next.getKey());
+    }
+    if (totalBytes > limit) {
+      LOGGER.debug("Staging cache holds {} bytes of datasets in use",
+        totalBytes);
+    }
+  }
+
+  private void addReferences(Entry entry) {
+    for (File f : new HashSet<File>(entry.files.values())) {
+      Integer count = references.get(f);
+      references.put(f, count == null ? 1 : count + 1);
+    }
+  }
+
+  /**
+   * Drops the given dataset's claim on its copies, deleting the copies that
+   * no other dataset uses if requested.
+   */
+  private void removeReferences(Entry entry, boolean delete) {
+    for (File f : new HashSet<File>(entry.files.values())) {
+      // keep copies that another dataset also uses
+      Integer count = references.remove(f);
+      if (count != null && count > 1) {
+        references.put(f, count - 1);
+      }
+      else if (delete) {
+        delete(f);
+        Long size = sizes.remove(f);
+        if (size != null) {
+          totalBytes -= size;
+        }
+      }
+    }
+  }
+
+  /** Records the size of a copy that may have been written or replaced. */
+  private void updateSize(File f) {
+    long length = 0;
+    Long size;
+    if (f.isFile()) {
+      length = f.length();
+      size = sizes.put(f, length);
+    }
+    else {
+      size = sizes.remove(f);
+    }
+    totalBytes += length - (size == null ? 0 : size);
+  }
+
+  /**
+   * Adds the copies left in the given directory by earlier runs, and
+   * deletes incomplete copies.
+   */
+  private void scan(File dir) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        scan(child);
+      }
+      else if (child.getName().endsWith(".part")) {
+        delete(child);
+      }
+      else {
+        sizes.put(child, child.length());
+        totalBytes += child.length();
+      }
+    }
+  }
+
+  private static void delete(File f) {
+    if (f.exists() && !f.delete()) {
+      LOGGER.debug("Could not delete {}", f);
+    }
+  }
+
+  // -- Helper classes --
+
+  /** A dataset's local copies. */
+  private static class Entry {
+    FutureTask<Map<String, String>> task;
+    Map<String, File> files = new LinkedHashMap<String, File>();
+    boolean inUse = false;
+  }
+
+}
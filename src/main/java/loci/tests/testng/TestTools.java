@@ -26,11 +26,8 @@
 package loci.tests.testng;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.FieldPosition;
@@ -38,13 +35,17 @@ import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import loci.common.ByteArrayHandle;
 import loci.common.Constants;
 import loci.common.DataTools;
 import loci.common.DateTools;
+import loci.common.IRandomAccess;
 import loci.common.Location;
-import loci.common.RandomAccessInputStream;
 import loci.formats.IFormatReader;
 import loci.formats.IFormatWriter;
 import loci.formats.ImageReader;
@@ -78,6 +79,41 @@ public class TestTools {
     return value;
   }
 
+  /**
+   * Returns the integer value of a system property, or the given default
+   * if the property is not set or is not an integer.
+   */
+  public static int getIntProperty(String key, int defaultValue) {
+    String value = getProperty(key);
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    }
+    catch (NumberFormatException e) {
+      LOGGER.warn("Invalid value for {}: {}", key, value);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the number of untimed iterations that performance tests should
+   * run before measuring, so that class loading and JIT compilation are not
+   * included in steady-state measurements. Defaults to 0.
+   */
+  public static int getWarmupIterations() {
+    return Math.max(0, getIntProperty("testng.warmup-iterations", 0));
+  }
+
+  /**
+   * Returns the number of measured iterations that performance tests should
+   * run after warming up. Defaults to 1.
+   */
+  public static int getMeasuredIterations() {
+    return Math.max(1, getIntProperty("testng.measured-iterations", 1));
+  }
+
   /** Calculate the SHA-1 of a byte array. */
   public static String sha1(byte[] b, int offset, int len) {
     try {
@@ -172,6 +208,33 @@ public class TestTools {
     return mem >> 20;
   }
 
+  /**
+   * Creates an instance of the registered reader with the given short class
+   * name. Returns null, after logging a warning, if no such reader is
+   * registered or it cannot be instantiated.
+   */
+  public static IFormatReader createReader(String name) {
+    Class<? extends IFormatReader>[] classes =
+      ImageReader.getDefaultReaderClasses().getClasses();
+    for (Class<? extends IFormatReader> c : classes) {
+      if (c.getSimpleName().equals(name)) {
+        try {
+          return c.newInstance();
+        }
+        catch (InstantiationException e) {
+          LOGGER.warn("Could not create {}", name, e);
+          return null;
+        }
+        catch (IllegalAccessException e) {
+          LOGGER.warn("Could not create {}", name, e);
+          return null;
+        }
+      }
+    }
+    LOGGER.warn("{} is not a registered reader", name);
+    return null;
+  }
+
   /** Gets the class name sans package for the given object. */
   public static String shortClassName(Object o) {
     String name = o.getClass().getName();
@@ -333,6 +396,7 @@ public class TestTools {
     });
 
     ImageReader typeTester = new ImageReader();
+    DetectionProfiler profiler = DetectionProfiler.getProfiler();
 
     for (int i=0; i<subsList.size(); i++) {
       Location file = new Location(subsList.get(i));
@@ -351,7 +415,10 @@ public class TestTools {
       }
       else if (!subsList.get(i).endsWith("readme.txt") &&
                !subsList.get(i).endsWith("test_setup.ini")) {
-        if (typeTester.isThisType(subsList.get(i))) {
+        boolean isType = profiler == null ?
+          typeTester.isThisType(subsList.get(i)) :
+          profiler.isThisType(typeTester, subsList.get(i));
+        if (isType) {
           LOGGER.debug("\tOK");
           files.add(file.getAbsolutePath());
         }
@@ -458,30 +525,126 @@ public class TestTools {
   }
 
   /**
-   * Map the given file into memory.
+   * Map the given file into memory.  Files larger than 2 GB are mapped in
+   * several segments; see {@link MappedFileHandle}.
    *
    * @return true if the mapping was successful.
    */
   public static boolean mapFile(String id) throws IOException {
-    RandomAccessInputStream stream = new RandomAccessInputStream(id);
-    Runtime rt = Runtime.getRuntime();
-    long maxMem = rt.freeMemory();
-    long length = stream.length();
-    if (length < Integer.MAX_VALUE && length < maxMem) {
-      stream.close();
-      FileInputStream fis = new FileInputStream(id);
-      FileChannel channel = fis.getChannel();
-      ByteBuffer buf =
-        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
-      ByteArrayHandle handle = new ByteArrayHandle(buf);
-      Location.mapFile(id, handle);
-      fis.close();
+    if (!new File(id).isFile()) {
+      return false;
+    }
+    try {
+      Location.mapFile(id, new MappedFileHandle(id));
       return true;
     }
-    stream.close();
-    return false;
+    catch (IOException e) {
+      // mapping can fail if the address space is exhausted
+      LOGGER.warn("Could not map {}", id, e);
+      return false;
+    }
+  }
+
+
+  /**
+   * Map the given files into memory, mapping and loading them in parallel.
+   * The mappings are registered on the calling thread, as
+   * {@link Location}'s mappings are per-thread.
+   *
+   * @return true if at least one of the files was mapped.
+   */
+  public static boolean mapFiles(String[] files) throws IOException {
+    int threads = Math.max(1,
+      Math.min(files.length, Runtime.getRuntime().availableProcessors()));
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    boolean mapped = false;
+    try {
+      List<Future<MappedFileHandle>> handles =
+        new ArrayList<Future<MappedFileHandle>>();
+      for (final String file : files) {
+        handles.add(pool.submit(new Callable<MappedFileHandle>() {
+          @Override
+          public MappedFileHandle call() throws IOException {
+            if (!new File(file).isFile()) {
+              return null;
+            }
+            MappedFileHandle handle = new MappedFileHandle(file);
+            handle.load();
+            return handle;
+          }
+        }));
+      }
+      for (int i=0; i<files.length; i++) {
+        try {
+          MappedFileHandle handle = handles.get(i).get();
+          if (handle != null) {
+            Location.mapFile(files[i], handle);
+            mapped = true;
+          }
+        }
+        catch (ExecutionException e) {
+          LOGGER.warn("Could not map {}", files[i], e.getCause());
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+    return mapped;
+  }
+
+  /**
+   * Map the given files to handles that read ahead when accessed
+   * sequentially; see {@link ReadAheadHandle}.
+   *
+   * @return the handles that were mapped.
+   */
+  public static List<ReadAheadHandle> mapReadAhead(String[] files,
+    int blockSize, int blocks) throws IOException
+  {
+    List<ReadAheadHandle> handles = new ArrayList<ReadAheadHandle>();
+    for (String file : files) {
+      if (new File(file).isFile()) {
+        ReadAheadHandle handle = new ReadAheadHandle(file, blockSize, blocks);
+        Location.mapFile(file, handle);
+        handles.add(handle);
+      }
+    }
+    return handles;
   }
 
+  /** Closes the handles mapped to the given files, and removes them. */
+  public static void unmapFiles(String[] files) {
+    for (String file : files) {
+      IRandomAccess handle = Location.getMappedFile(file);
+      if (handle != null) {
+        Location.mapFile(file, null);
+        try {
+          handle.close();
+        }
+        catch (IOException e) {
+          LOGGER.debug("Could not close {}", file, e);
+        }
+      }
+    }
+  }
+
+  /** Deletes a file, or a directory and everything in it. */
+  public static void deleteTree(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteTree(child);
+      }
+    }
+    if (!file.delete()) {
+      LOGGER.debug("Could not delete {}", file);
+      file.deleteOnExit();
+    }
+  }
 
   /**
    * Determine whether or not a Throwable was caused by an OutOfMemoryError.
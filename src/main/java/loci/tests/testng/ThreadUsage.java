@@ -0,0 +1,163 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the CPU time and heap allocation of the current thread between
+ * calls to {@link #start()} and {@link #stop()}, along with the elapsed wall
+ * time. Unlike the total heap usage reported by {@link Runtime}, these
+ * measurements do not include the activity of other threads, so they remain
+ * meaningful when tests run in parallel.
+ *
+ * Allocation tracking requires the HotSpot extension of
+ * {@link ThreadMXBean}; if it is not available then
+ * {@link #getAllocatedBytes()} returns -1.
+ */
+public class ThreadUsage {
+
+  // -- Constants --
+
+  private static final ThreadMXBean THREADS =
+    ManagementFactory.getThreadMXBean();
+
+  private static final boolean CPU_TIME_SUPPORTED;
+
+  private static final boolean ALLOCATION_SUPPORTED;
+
+  static {
+    boolean cpu = false;
+    try {
+      cpu = THREADS.isCurrentThreadCpuTimeSupported();
+      if (cpu && !THREADS.isThreadCpuTimeEnabled()) {
+        THREADS.setThreadCpuTimeEnabled(true);
+      }
+    }
+    catch (UnsupportedOperationException e) {
+      cpu = false;
+    }
+    CPU_TIME_SUPPORTED = cpu;
+
+    boolean allocation = false;
+    if (THREADS instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean hotspot =
+        (com.sun.management.ThreadMXBean) THREADS;
+      try {
+        allocation = hotspot.isThreadAllocatedMemorySupported();
+        if (allocation && !hotspot.isThreadAllocatedMemoryEnabled()) {
+          hotspot.setThreadAllocatedMemoryEnabled(true);
+        }
+      }
+      catch (UnsupportedOperationException e) {
+        allocation = false;
+      }
+    }
+    ALLOCATION_SUPPORTED = allocation;
+  }
+
+  // -- Fields --
+
+  private long startCpu, startAllocated, startWall;
+  private long cpuTime = -1, allocated = -1, wallTime = -1;
+
+  // -- Static utility methods --
+
+  /** Returns true if per-thread CPU time can be measured. */
+  public static boolean isCpuTimeSupported() {
+    return CPU_TIME_SUPPORTED;
+  }
+
+  /** Returns true if per-thread heap allocation can be measured. */
+  public static boolean isAllocationSupported() {
+    return ALLOCATION_SUPPORTED;
+  }
+
+  /**
+   * Returns the CPU time used so far by the current thread, in nanoseconds,
+   * or -1 if not supported.
+   */
+  public static long currentCpuTime() {
+    return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : -1;
+  }
+
+  /**
+   * Returns the number of bytes allocated so far by the current thread,
+   * or -1 if not supported.
+   */
+  public static long currentAllocatedBytes() {
+    if (!ALLOCATION_SUPPORTED) return -1;
+    return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(
+      Thread.currentThread().getId());
+  }
+
+  // -- ThreadUsage API methods --
+
+  /** Starts measuring the current thread. */
+  public void start() {
+    startWall = System.nanoTime();
+    startCpu = currentCpuTime();
+    startAllocated = currentAllocatedBytes();
+  }
+
+  /**
+   * Stops measuring. Must be called from the same thread as
+   * {@link #start()}.
+   */
+  public void stop() {
+    long endAllocated = currentAllocatedBytes();
+    long endCpu = currentCpuTime();
+    wallTime = System.nanoTime() - startWall;
+    cpuTime = CPU_TIME_SUPPORTED ? endCpu - startCpu : -1;
+    allocated = ALLOCATION_SUPPORTED ? endAllocated - startAllocated : -1;
+  }
+
+  /** Returns the measured CPU time in nanoseconds, or -1 if unavailable. */
+  public long getCpuTime() {
+    return cpuTime;
+  }
+
+  /** Returns the measured allocation in bytes, or -1 if unavailable. */
+  public long getAllocatedBytes() {
+    return allocated;
+  }
+
+  /** Returns the measured wall time in nanoseconds. */
+  public long getWallTime() {
+    return wallTime;
+  }
+
+  /**
+   * Returns the measured CPU time in milliseconds if available,
+   * otherwise the wall time.
+   */
+  public double getTimeMillis() {
+    return (cpuTime >= 0 ? cpuTime : wallTime) / 1000000.0;
+  }
+
+}
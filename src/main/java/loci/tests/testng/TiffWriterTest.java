@@ -27,7 +27,7 @@ package loci.tests.testng;
 
 import static org.testng.AssertJUnit.fail;
 
-import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -37,6 +37,7 @@ import org.testng.annotations.Parameters;
 import org.testng.annotations.Test;
 
 import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
 import loci.formats.IFormatReader;
 import loci.formats.ImageReader;
 import loci.formats.in.TiffReader;
@@ -310,6 +311,23 @@ public class TiffWriterTest {
     outputReader.close();
   }
 
+  /**
+   * Creates the output for a test, in memory if the testng.write-memory
+   * budget allows; see {@link WriteTarget}.
+   * @param prefix The prefix of the temporary file name.
+   * @return See above.
+   * @throws IOException Thrown if the temporary file cannot be created.
+   */
+  private WriteTarget createTarget(String prefix) throws IOException {
+    long size = 0;
+    for (int s = 0; s < reader.getSeriesCount(); s++) {
+      reader.setSeries(s);
+      size += (long) reader.getImageCount() * FormatTools.getPlaneSize(reader);
+    }
+    reader.setSeries(0);
+    return WriteTarget.openTemp(prefix, ".tiff", size);
+  }
+
   @Parameters({"id"})
   @BeforeClass
   public void parse(String id) throws Exception {
@@ -332,13 +350,16 @@ public class TiffWriterTest {
    */
   @Test(enabled=true)
   public void testWriteFullImage() throws Exception {
-    File f;
     for (int i = 0; i < COMPRESSION.length; i++) {
       for (int j = 0; j < BIG_TIFF.length; j++) {
-        f =  File.createTempFile("testWriteFullImage_"+j+"_"+
-            COMPRESSION[i], ".tiff");
-        f.deleteOnExit();
-        assertTiles(f.getAbsolutePath(), COMPRESSION[i], 1, 1, BIG_TIFF[j]);
+        WriteTarget target = createTarget(
+          "testWriteFullImage_" + j + "_" + COMPRESSION[i]);
+        try {
+          assertTiles(target.getId(), COMPRESSION[i], 1, 1, BIG_TIFF[j]);
+        }
+        finally {
+          target.close();
+        }
       }
     }
   }
@@ -349,13 +370,16 @@ public class TiffWriterTest {
    */
   @Test(enabled=true)
   public void testWriteImageFourTiles() throws Exception {
-    File f;
     for (int i = 0; i < COMPRESSION.length; i++) {
       for (int j=0; j<BIG_TIFF.length; j++) {
-        f =  File.createTempFile("testWriteImageFourTiles_" + j + "_" +
-          COMPRESSION[i], ".tiff");
-        f.deleteOnExit();
-        assertTiles(f.getAbsolutePath(), COMPRESSION[i], 2, 2, BIG_TIFF[j]);
+        WriteTarget target = createTarget(
+          "testWriteImageFourTiles_" + j + "_" + COMPRESSION[i]);
+        try {
+          assertTiles(target.getId(), COMPRESSION[i], 2, 2, BIG_TIFF[j]);
+        }
+        finally {
+          target.close();
+        }
       }
     }
   }
@@ -366,13 +390,16 @@ public class TiffWriterTest {
    */
   @Test(enabled=true)
   public void testWriteImageSplitHorizontal() throws Exception {
-    File f;
     for (int i = 0; i < COMPRESSION.length; i++) {
       for (int j=0; j<BIG_TIFF.length; j++) {
-        f =  File.createTempFile("testWriteImageSplitHorizontal_" + j + "_" +
-          COMPRESSION[i], ".tiff");
-        f.deleteOnExit();
-        assertTiles(f.getAbsolutePath(), COMPRESSION[i], 1, 2, BIG_TIFF[j]);
+        WriteTarget target = createTarget(
+          "testWriteImageSplitHorizontal_" + j + "_" + COMPRESSION[i]);
+        try {
+          assertTiles(target.getId(), COMPRESSION[i], 1, 2, BIG_TIFF[j]);
+        }
+        finally {
+          target.close();
+        }
       }
     }
   }
@@ -383,13 +410,16 @@ public class TiffWriterTest {
    */
   @Test(enabled=true)
   public void testWriteImageSplitVertical() throws Exception {
-    File f;
     for (int i = 0; i < COMPRESSION.length; i++) {
       for (int j=0; j<BIG_TIFF.length; j++) {
-        f =  File.createTempFile("testWriteImageSplitVertical_" + j + "_" +
-          COMPRESSION[i], ".tiff");
-        f.deleteOnExit();
-        assertTiles(f.getAbsolutePath(), COMPRESSION[i], 2, 1, BIG_TIFF[j]);
+        WriteTarget target = createTarget(
+          "testWriteImageSplitVertical_" + j + "_" + COMPRESSION[i]);
+        try {
+          assertTiles(target.getId(), COMPRESSION[i], 2, 1, BIG_TIFF[j]);
+        }
+        finally {
+          target.close();
+        }
       }
     }
   }
@@ -401,14 +431,17 @@ public class TiffWriterTest {
    */
   @Test(enabled=true)
   public void testWriteUnevenTilesImage128x128Block() throws Exception {
-    File f;
     for (int i = 0; i < COMPRESSION.length; i++) {
       for (int j = 0; j < BIG_TIFF.length; j++) {
-        f =  File.createTempFile("testWriteUnevenTilesImage128x128Block_"+j+"_"+
-            COMPRESSION[i], ".tiff");
-        f.deleteOnExit();
-        assertUnevenTiles(f.getAbsolutePath(), COMPRESSION[i], 128, 128, 
-            BIG_TIFF[j]);
+        WriteTarget target = createTarget(
+          "testWriteUnevenTilesImage128x128Block_" + j + "_" + COMPRESSION[i]);
+        try {
+          assertUnevenTiles(target.getId(), COMPRESSION[i], 128, 128,
+              BIG_TIFF[j]);
+        }
+        finally {
+          target.close();
+        }
       }
     }
   }
@@ -420,14 +453,17 @@ public class TiffWriterTest {
    */
   @Test(enabled=true)
   public void testWriteUnevenTilesImage256x256Block() throws Exception {
-    File f;
     for (int i = 0; i < COMPRESSION.length; i++) {
       for (int j = 0; j < BIG_TIFF.length; j++) {
-        f =  File.createTempFile("testWriteUnevenTilesImage256x256Block_"+j+"_"+
-            COMPRESSION[i], ".tiff");
-        f.deleteOnExit();
-        assertUnevenTiles(f.getAbsolutePath(), COMPRESSION[i], 256, 256, 
-            BIG_TIFF[j]);
+        WriteTarget target = createTarget(
+          "testWriteUnevenTilesImage256x256Block_" + j + "_" + COMPRESSION[i]);
+        try {
+          assertUnevenTiles(target.getId(), COMPRESSION[i], 256, 256,
+              BIG_TIFF[j]);
+        }
+        finally {
+          target.close();
+        }
       }
     }
   }
@@ -0,0 +1,241 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import loci.common.Location;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Reads the same set of tiles in several different orders, and logs the
+ * throughput of each order. The tiles are the optimally sized tiles of the
+ * first plane of the first series. Each order is read with a newly
+ * initialized reader, after one untimed row-major pass to warm up the JIT
+ * and the operating system's file cache.
+ *
+ * If testng.latency-report is set, per-tile latency percentiles for each
+ * order are also written there.
+ */
+public class TileAccessPatternTest {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(TileAccessPatternTest.class);
+
+  /** Seed for the random order, so that runs are comparable. */
+  private static final long SEED = 1234;
+
+  private static final String[] PATTERNS =
+    {"row_major", "column_major", "random", "hilbert"};
+
+  // -- Fields --
+
+  private String id;
+
+  private String filename;
+
+  private boolean memMap;
+
+  private LatencyRecorder latencies = new LatencyRecorder();
+
+  // -- Setup/teardown methods --
+
+  @Parameters({"id", "inMemory"})
+  @BeforeClass
+  public void init(String id, String inMemory) throws Exception {
+    this.id = id;
+    filename = new File(id).getName();
+    memMap = Boolean.parseBoolean(inMemory);
+  }
+
+  @AfterClass
+  public void tearDown() throws Exception {
+    Location.mapId(id, null);
+    String report = TestTools.getProperty("testng.latency-report");
+    if (report != null && !report.isEmpty()) {
+      LOGGER.info("Writing latency report to {}", report);
+      latencies.writeReport(new File(report));
+    }
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testAccessPatterns() throws Exception {
+    IFormatReader reader = new ImageReader();
+    if (memMap && reader.isSingleFile(id)) {
+      TestTools.mapFile(id);
+    }
+    String readerName = null;
+    int tilesWide, tilesHigh;
+    try {
+      reader.setId(id);
+      readerName = TestTools.shortClassName(
+        ((ImageReader) reader).getReader());
+      int tileWidth = Math.min(reader.getOptimalTileWidth(),
+        reader.getSizeX());
+      int tileHeight = Math.min(reader.getOptimalTileHeight(),
+        reader.getSizeY());
+      tilesWide = (reader.getSizeX() + tileWidth - 1) / tileWidth;
+      tilesHigh = (reader.getSizeY() + tileHeight - 1) / tileHeight;
+
+      // warm up
+      readTiles(reader, getOrder("row_major", tilesWide, tilesHigh), null);
+    }
+    finally {
+      reader.close();
+    }
+
+    LOGGER.info("{} ({}): {}x{} tiles", new Object[] {filename, readerName,
+      tilesWide, tilesHigh});
+    for (String pattern : PATTERNS) {
+      List<int[]> order = getOrder(pattern, tilesWide, tilesHigh);
+      LatencyRecorder.Histogram latency =
+        latencies.getHistogram(readerName, "tile_" + pattern, filename);
+      reader = new ImageReader();
+      try {
+        reader.setId(id);
+        long start = System.nanoTime();
+        readTiles(reader, order, latency);
+        long elapsed = System.nanoTime() - start;
+        LOGGER.info("{} ({}): {} {} tiles/s", new Object[] {filename,
+          readerName, pattern,
+          String.format(Locale.ENGLISH, "%.1f",
+            order.size() / (elapsed / 1000000000.0))});
+      }
+      finally {
+        reader.close();
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Reads the tiles of the first plane in the given order,
+   * recording the latency of each tile if a histogram is given.
+   */
+  private void readTiles(IFormatReader reader, List<int[]> order,
+    LatencyRecorder.Histogram latency) throws Exception
+  {
+    reader.setSeries(0);
+    int sizeX = reader.getSizeX();
+    int sizeY = reader.getSizeY();
+    int tileWidth = Math.min(reader.getOptimalTileWidth(), sizeX);
+    int tileHeight = Math.min(reader.getOptimalTileHeight(), sizeY);
+    byte[] buf =
+      new byte[FormatTools.getPlaneSize(reader, tileWidth, tileHeight)];
+    for (int[] tile : order) {
+      int x = tile[0] * tileWidth;
+      int y = tile[1] * tileHeight;
+      long start = System.nanoTime();
+      reader.openBytes(0, buf, x, y, Math.min(tileWidth, sizeX - x),
+        Math.min(tileHeight, sizeY - y));
+      if (latency != null) {
+        latency.record(System.nanoTime() - start);
+      }
+    }
+  }
+
+  /** Returns the tile column and row of every tile, in the given order. */
+  static List<int[]> getOrder(String pattern, int tilesWide, int tilesHigh) {
+    List<int[]> order = new ArrayList<int[]>();
+    if (pattern.equals("column_major")) {
+      for (int x=0; x<tilesWide; x++) {
+        for (int y=0; y<tilesHigh; y++) {
+          order.add(new int[] {x, y});
+        }
+      }
+    }
+    else if (pattern.equals("hilbert")) {
+      int n = 1;
+      while (n < tilesWide || n < tilesHigh) {
+        n *= 2;
+      }
+      for (long d=0; d<(long) n * n; d++) {
+        int[] tile = hilbertToTile(n, d);
+        if (tile[0] < tilesWide && tile[1] < tilesHigh) {
+          order.add(tile);
+        }
+      }
+    }
+    else {
+      for (int y=0; y<tilesHigh; y++) {
+        for (int x=0; x<tilesWide; x++) {
+          order.add(new int[] {x, y});
+        }
+      }
+      if (pattern.equals("random")) {
+        Collections.shuffle(order, new Random(SEED));
+      }
+    }
+    return order;
+  }
+
+  /**
+   * Converts a distance along the Hilbert curve filling an n x n grid
+   * (n a power of two) into a tile column and row.
+   */
+  private static int[] hilbertToTile(int n, long d) {
+    int x = 0, y = 0;
+    long t = d;
+    for (int s=1; s<n; s*=2) {
+      int rx = (int) (1 & (t / 2));
+      int ry = (int) (1 & (t ^ rx));
+      if (ry == 0) {
+        if (rx == 1) {
+          x = s - 1 - x;
+          y = s - 1 - y;
+        }
+        int tmp = x;
+        x = y;
+        y = tmp;
+      }
+      x += s * rx;
+      y += s * ry;
+      t /= 4;
+    }
+    return new int[] {x, y};
+  }
+
+}
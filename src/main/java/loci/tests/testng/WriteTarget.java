@@ -0,0 +1,213 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import loci.common.ByteArrayHandle;
+import loci.common.Location;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Output location for a writer test. If the testng.write-memory property
+ * gives a memory budget in MB, the output is written to a
+ * {@link ByteArrayHandle} mapped to its file name with
+ * {@link Location#mapFile(String, loci.common.IRandomAccess)}, and read back
+ * through the same name; the file is never created on disk. Outputs whose
+ * estimated size would exceed what remains of the budget, which is shared by
+ * all concurrently running tests, are written to disk as before.
+ *
+ * The target must be closed once the output has been read back, to release
+ * the memory or delete the file.
+ */
+public class WriteTarget {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(WriteTarget.class);
+
+  /**
+   * Room left for headers and metadata when sizing a buffer from the
+   * number of pixel bytes to be written.
+   */
+  private static final int OVERHEAD = 1024 * 1024;
+
+  // -- Static fields --
+
+  private static long budget = -1;
+
+  private static long reserved = 0;
+
+  /** Used to give in-memory temporary outputs unique names. */
+  private static final AtomicLong COUNTER = new AtomicLong();
+
+  // -- Fields --
+
+  private String id;
+  private long capacity;
+
+  /** Whether the output was written to a file, which close deletes. */
+  private boolean onDisk;
+
+  // -- Constructor --
+
+  private WriteTarget(String id, long capacity) {
+    this.id = id;
+    this.capacity = capacity;
+    onDisk = capacity == 0;
+  }
+
+  // -- Static methods --
+
+  /**
+   * Prepares the given file name for writing. The estimated size is the
+   * number of pixel bytes that will be written; compressed output is
+   * smaller, and some room is added for headers and metadata.
+   */
+  public static WriteTarget open(String id, long estimatedSize) {
+    long capacity = reserveMemory(estimatedSize);
+    if (capacity > 0) {
+      map(id, capacity);
+    }
+    return new WriteTarget(id, capacity);
+  }
+
+  /**
+   * Prepares a temporary output with the given name prefix and suffix,
+   * as {@link #open(String, long)} does. A temporary file is only created
+   * if the output does not fit in memory.
+   */
+  public static WriteTarget openTemp(String prefix, String suffix,
+    long estimatedSize)
+    throws IOException
+  {
+    long capacity = reserveMemory(estimatedSize);
+    if (capacity == 0) {
+      File file = File.createTempFile(prefix, suffix);
+      file.deleteOnExit();
+      return new WriteTarget(file.getAbsolutePath(), 0);
+    }
+    String name = prefix + COUNTER.incrementAndGet() + suffix;
+    String id =
+      new File(System.getProperty("java.io.tmpdir"), name).getAbsolutePath();
+    map(id, capacity);
+    return new WriteTarget(id, capacity);
+  }
+
+  /** Returns the write memory budget in bytes, or 0 if disabled. */
+  public static synchronized long getBudget() {
+    if (budget < 0) {
+      budget = Math.max(0, TestTools.getIntProperty("testng.write-memory", 0));
+      budget <<= 20;
+      if (budget > 0) {
+        LOGGER.info("Writing outputs of up to {} MB in memory", budget >> 20);
+      }
+    }
+    return budget;
+  }
+
+  /**
+   * Reserves memory for an output of the given estimated size, returning
+   * the buffer capacity, or 0 if the output should be written to disk.
+   */
+  private static long reserveMemory(long estimatedSize) {
+    long capacity = estimatedSize + estimatedSize / 4 + OVERHEAD;
+    if (capacity > Integer.MAX_VALUE || !reserve(capacity)) {
+      return 0;
+    }
+    if (!TestTools.canFitInMemory(capacity)) {
+      release(capacity);
+      return 0;
+    }
+    return capacity;
+  }
+
+  private static void map(String id, long capacity) {
+    ByteBuffer buffer = ByteBuffer.allocate((int) capacity);
+    buffer.limit(0);
+    Location.mapFile(id, new ByteArrayHandle(buffer));
+  }
+
+  private static synchronized boolean reserve(long bytes) {
+    if (reserved + bytes > getBudget()) {
+      return false;
+    }
+    reserved += bytes;
+    return true;
+  }
+
+  private static synchronized void release(long bytes) {
+    reserved -= bytes;
+  }
+
+  // -- WriteTarget API methods --
+
+  /** Gets the file name to write to and read back from. */
+  public String getId() {
+    return id;
+  }
+
+  /** Gets the number of bytes written so far. */
+  public long length() throws IOException {
+    if (isInMemory()) {
+      return Location.getMappedFile(id).length();
+    }
+    return new File(id).length();
+  }
+
+  /** Returns true if the output is being written to memory. */
+  public boolean isInMemory() {
+    return capacity > 0;
+  }
+
+  /**
+   * Removes the in-memory output and releases its share of the budget,
+   * or deletes the output file if it was written to disk. A file with the
+   * name of an in-memory output is left alone, as it was not written here.
+   */
+  public void close() {
+    if (isInMemory()) {
+      Location.mapFile(id, null);
+      release(capacity);
+      capacity = 0;
+    }
+    if (!onDisk) {
+      return;
+    }
+    File file = new File(id);
+    if (file.exists() && !file.delete()) {
+      LOGGER.debug("Could not delete {}", id);
+    }
+  }
+
+}
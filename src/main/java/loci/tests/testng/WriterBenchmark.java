@@ -0,0 +1,472 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.testng;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import loci.common.Constants;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatWriter;
+import loci.formats.ImageReader;
+import loci.formats.meta.MetadataRetrieve;
+import loci.formats.services.OMEXMLService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures encoding speed, decoding speed and output size for each writer
+ * and compression type, and recommends a writer for each pixel type.
+ *
+ * For each dataset, the planes are converted with the writer and then read
+ * back. Encoding time covers setId, saveBytes and close on the writer, but
+ * not reading the input planes; decoding time covers setId and openBytes
+ * on the converted file. Both rates are given in MB of pixel data per
+ * second. The size ratio is the size of the converted file(s) divided by
+ * the size of the pixel data, so smaller is better. Converted files are
+ * written to memory when testng.write-memory allows; see
+ * {@link WriteTarget}.
+ *
+ * Enabled by setting testng.writer-benchmark to a directory, in which
+ * writer-datasets.tsv, writer-pixel-types.tsv and writer-recommendations.tsv
+ * are written. The timings are only comparable when conversions are not
+ * run concurrently, i.e. with testng.threadCount and testng.writer-threads
+ * set to 1.
+ */
+public class WriterBenchmark {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(WriterBenchmark.class);
+
+  // -- Static fields --
+
+  private static WriterBenchmark benchmark;
+
+  private static boolean initialized = false;
+
+  // -- Fields --
+
+  private File reportDir;
+
+  private List<Result> results = new ArrayList<Result>();
+
+  // -- Constructor --
+
+  public WriterBenchmark(String reportDir) {
+    this.reportDir = new File(reportDir);
+  }
+
+  // -- Static utility methods --
+
+  /**
+   * Returns the benchmark configured by testng.writer-benchmark,
+   * or null if writers are not being benchmarked.
+   */
+  public static synchronized WriterBenchmark getBenchmark() {
+    if (!initialized) {
+      String dir = TestTools.getProperty("testng.writer-benchmark");
+      if (dir != null && !dir.isEmpty()) {
+        LOGGER.info("testng.writer-benchmark = {}", dir);
+        benchmark = new WriterBenchmark(dir);
+      }
+      initialized = true;
+    }
+    return benchmark;
+  }
+
+  // -- WriterBenchmark API methods --
+
+  /**
+   * Converts the given file with the given writer and reads it back,
+   * {@link TestTools#getWarmupIterations()} times untimed and then
+   * {@link TestTools#getMeasuredIterations()} times, recording the median.
+   * Files whose pixel type is not supported by the writer are ignored.
+   * Returns a description of the problem if the converted file could not
+   * be read back, or null otherwise.
+   *
+   * @param lossless whether the writer and compression type are lossless
+   */
+  public String measure(String id, IFormatWriter writer, boolean lossless)
+    throws DependencyException, ServiceException, FormatException, IOException
+  {
+    ImageReader reader = new ImageReader();
+    try {
+      ServiceFactory factory = new ServiceFactory();
+      OMEXMLService service = factory.getInstance(OMEXMLService.class);
+      reader.setMetadataStore(service.createOMEXMLMetadata());
+      reader.setId(id);
+      if (!writer.isSupportedType(reader.getPixelType())) {
+        LOGGER.debug("{} does not support the pixel type of {}",
+          TestTools.shortClassName(writer), id);
+        return null;
+      }
+
+      int warmup = TestTools.getWarmupIterations();
+      int measured = TestTools.getMeasuredIterations();
+      long[] encodeNanos = new long[measured];
+      long[] decodeNanos = new long[measured];
+      Result result = new Result(id);
+      for (int i=0; i<warmup+measured; i++) {
+        Sample sample = convert(reader, writer);
+        if (sample.decodedBytes == 0) {
+          return "No planes could be read from the converted file";
+        }
+        if (i >= warmup) {
+          encodeNanos[i - warmup] = sample.encodeNanos;
+          decodeNanos[i - warmup] = sample.decodeNanos;
+          result.rawBytes = sample.rawBytes;
+          result.decodedBytes = sample.decodedBytes;
+          result.outputBytes = sample.outputBytes;
+        }
+      }
+      result.writer = TestTools.shortClassName(writer);
+      result.compression = String.valueOf(writer.getCompression());
+      result.pixelType =
+        FormatTools.getPixelTypeString(reader.getPixelType());
+      result.lossless = lossless;
+      result.encodeNanos = median(encodeNanos);
+      result.decodeNanos = median(decodeNanos);
+
+      LOGGER.debug("{} {} {}: encode {} MB/s, decode {} MB/s, " +
+        "size ratio {}", new Object[] {id, result.writer, result.compression,
+        result.getEncodeRate(), result.getDecodeRate(),
+        result.getSizeRatio()});
+      synchronized (results) {
+        results.add(result);
+      }
+      return null;
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Writes the per-dataset results, the medians for each pixel type and
+   * writer, and the recommended writers for each pixel type.
+   */
+  public void writeReport() {
+    // pixel type -> "writer compression" -> results
+    Map<String, Map<String, List<Result>>> byType =
+      new TreeMap<String, Map<String, List<Result>>>();
+    synchronized (results) {
+      for (Result r : results) {
+        Map<String, List<Result>> byWriter = byType.get(r.pixelType);
+        if (byWriter == null) {
+          byWriter = new TreeMap<String, List<Result>>();
+          byType.put(r.pixelType, byWriter);
+        }
+        String key = r.writer + "\t" + r.compression;
+        List<Result> list = byWriter.get(key);
+        if (list == null) {
+          list = new ArrayList<Result>();
+          byWriter.put(key, list);
+        }
+        list.add(r);
+      }
+    }
+    if (!reportDir.exists()) {
+      reportDir.mkdirs();
+    }
+
+    PrintWriter out = null;
+    try {
+      out = open("writer-datasets.tsv");
+      out.println("pixel_type\twriter\tcompression\tid\traw_bytes\t" +
+        "output_bytes\tsize_ratio\tencode_mb_s\tdecode_mb_s");
+      for (Map<String, List<Result>> byWriter : byType.values()) {
+        for (List<Result> list : byWriter.values()) {
+          for (Result r : list) {
+            out.println(String.format(Locale.ENGLISH,
+              "%s\t%s\t%s\t%s\t%d\t%d\t%.4f\t%.2f\t%.2f", r.pixelType,
+              r.writer, r.compression, r.id, r.rawBytes, r.outputBytes,
+              r.getSizeRatio(), r.getEncodeRate(), r.getDecodeRate()));
+          }
+        }
+      }
+      out.close();
+
+      out = open("writer-pixel-types.tsv");
+      out.println("pixel_type\twriter\tcompression\tlossless\tdatasets\t" +
+        "median_size_ratio\tmedian_encode_mb_s\tmedian_decode_mb_s");
+      List<Summary> summaries = new ArrayList<Summary>();
+      for (Map.Entry<String, Map<String, List<Result>>> type :
+        byType.entrySet())
+      {
+        for (List<Result> list : type.getValue().values()) {
+          Summary s = new Summary(list);
+          summaries.add(s);
+          out.println(String.format(Locale.ENGLISH,
+            "%s\t%s\t%s\t%s\t%d\t%.4f\t%.2f\t%.2f", s.pixelType, s.writer,
+            s.compression, s.lossless, s.datasets, s.sizeRatio,
+            s.encodeRate, s.decodeRate));
+        }
+      }
+      out.close();
+
+      out = open("writer-recommendations.tsv");
+      out.println("pixel_type\tcriterion\twriter\tcompression\tlossless\t" +
+        "median_size_ratio\tmedian_encode_mb_s\tmedian_decode_mb_s");
+      for (String pixelType : byType.keySet()) {
+        Summary smallest = null;
+        Summary smallestLossless = null;
+        Summary fastestEncode = null;
+        Summary fastestDecode = null;
+        for (Summary s : summaries) {
+          if (!s.pixelType.equals(pixelType)) {
+            continue;
+          }
+          if (smallest == null || s.sizeRatio < smallest.sizeRatio) {
+            smallest = s;
+          }
+          if (!s.lossless) {
+            continue;
+          }
+          if (smallestLossless == null ||
+            s.sizeRatio < smallestLossless.sizeRatio)
+          {
+            smallestLossless = s;
+          }
+          if (fastestEncode == null || s.encodeRate > fastestEncode.encodeRate)
+          {
+            fastestEncode = s;
+          }
+          if (fastestDecode == null || s.decodeRate > fastestDecode.decodeRate)
+          {
+            fastestDecode = s;
+          }
+        }
+        recommend(out, "smallest", smallest);
+        recommend(out, "smallest_lossless", smallestLossless);
+        recommend(out, "fastest_lossless_encode", fastestEncode);
+        recommend(out, "fastest_lossless_decode", fastestDecode);
+      }
+    }
+    catch (IOException e) {
+      LOGGER.warn("Could not write writer benchmark to {}", reportDir, e);
+    }
+    finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Converts every plane that the writer can store, and reads them back. */
+  private Sample convert(ImageReader reader, IFormatWriter writer)
+    throws FormatException, IOException
+  {
+    Sample sample = new Sample();
+    int seriesCount = writer.canDoStacks() ? reader.getSeriesCount() : 1;
+    for (int series=0; series<seriesCount; series++) {
+      reader.setSeries(series);
+      int imageCount = writer.canDoStacks() ? reader.getImageCount() : 1;
+      sample.rawBytes += (long) imageCount * FormatTools.getPlaneSize(reader);
+    }
+    reader.setSeries(0);
+
+    File dir = Files.createTempDirectory("writer-benchmark").toFile();
+    String output =
+      new File(dir, "converted." + writer.getSuffixes()[0]).getPath();
+    WriteTarget target = WriteTarget.open(output, sample.rawBytes);
+    ImageReader convertedReader = new ImageReader();
+    try {
+      writer.close();
+      writer.setMetadataRetrieve((MetadataRetrieve) reader.getMetadataStore());
+      long start = System.nanoTime();
+      writer.setId(output);
+      sample.encodeNanos += System.nanoTime() - start;
+      for (int series=0; series<seriesCount; series++) {
+        reader.setSeries(series);
+        writer.setSeries(series);
+        int imageCount = writer.canDoStacks() ? reader.getImageCount() : 1;
+        for (int image=0; image<imageCount; image++) {
+          byte[] plane = reader.openBytes(image);
+          start = System.nanoTime();
+          writer.saveBytes(image, plane);
+          sample.encodeNanos += System.nanoTime() - start;
+        }
+      }
+      reader.setSeries(0);
+      start = System.nanoTime();
+      writer.close();
+      sample.encodeNanos += System.nanoTime() - start;
+
+      sample.outputBytes = target.length();
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (!file.getPath().equals(output)) {
+            sample.outputBytes += file.length();
+          }
+        }
+      }
+
+      start = System.nanoTime();
+      convertedReader.setId(output);
+      for (int series=0; series<convertedReader.getSeriesCount(); series++) {
+        convertedReader.setSeries(series);
+        for (int image=0; image<convertedReader.getImageCount(); image++) {
+          sample.decodedBytes += convertedReader.openBytes(image).length;
+        }
+      }
+      sample.decodeNanos = System.nanoTime() - start;
+    }
+    finally {
+      convertedReader.close();
+      target.close();
+      TestTools.deleteTree(dir);
+    }
+    return sample;
+  }
+
+  private void recommend(PrintWriter out, String criterion, Summary s) {
+    if (s == null) {
+      return;
+    }
+    out.println(String.format(Locale.ENGLISH,
+      "%s\t%s\t%s\t%s\t%s\t%.4f\t%.2f\t%.2f", s.pixelType, criterion,
+      s.writer, s.compression, s.lossless, s.sizeRatio, s.encodeRate,
+      s.decodeRate));
+  }
+
+  private PrintWriter open(String name) throws IOException {
+    return new PrintWriter(new OutputStreamWriter(
+      new FileOutputStream(new File(reportDir, name)), Constants.ENCODING));
+  }
+
+  private static long median(long[] values) {
+    Arrays.sort(values);
+    return values[values.length / 2];
+  }
+
+  private static double median(double[] values) {
+    Arrays.sort(values);
+    return values[values.length / 2];
+  }
+
+  /** Returns the rate in MB/s at which the given bytes were processed. */
+  private static double rate(long bytes, long nanos) {
+    if (nanos <= 0) {
+      return 0;
+    }
+    return (bytes / (1024.0 * 1024.0)) / (nanos / 1000000000.0);
+  }
+
+  // -- Helper classes --
+
+  /** Timings and sizes for a single conversion. */
+  private static class Sample {
+    long rawBytes;
+    long decodedBytes;
+    long outputBytes;
+    long encodeNanos;
+    long decodeNanos;
+  }
+
+  /** Median timings and sizes for a single dataset and writer. */
+  private static class Result {
+    String id;
+    String pixelType;
+    String writer;
+    String compression;
+    boolean lossless;
+    long rawBytes;
+    long decodedBytes;
+    long outputBytes;
+    long encodeNanos;
+    long decodeNanos;
+
+    Result(String id) {
+      this.id = id;
+    }
+
+    double getSizeRatio() {
+      return rawBytes == 0 ? 0 : (double) outputBytes / rawBytes;
+    }
+
+    double getEncodeRate() {
+      return rate(rawBytes, encodeNanos);
+    }
+
+    double getDecodeRate() {
+      return rate(decodedBytes, decodeNanos);
+    }
+  }
+
+  /** Medians over all datasets of one pixel type for one writer. */
+  private static class Summary {
+    String pixelType;
+    String writer;
+    String compression;
+    boolean lossless;
+    int datasets;
+    double sizeRatio;
+    double encodeRate;
+    double decodeRate;
+
+    Summary(List<Result> list) {
+      Result first = list.get(0);
+      pixelType = first.pixelType;
+      writer = first.writer;
+      compression = first.compression;
+      lossless = first.lossless;
+      datasets = list.size();
+      double[] ratios = new double[datasets];
+      double[] encode = new double[datasets];
+      double[] decode = new double[datasets];
+      for (int i=0; i<datasets; i++) {
+        ratios[i] = list.get(i).getSizeRatio();
+        encode[i] = list.get(i).getEncodeRate();
+        decode[i] = list.get(i).getDecodeRate();
+      }
+      sizeRatio = median(ratios);
+      encodeRate = median(encode);
+      decodeRate = median(decode);
+    }
+  }
+
+}
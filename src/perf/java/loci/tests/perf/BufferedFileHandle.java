@@ -0,0 +1,254 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.perf;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import loci.common.FileHandle;
+
+/**
+ * Read-only {@link FileHandle} that reads the file through a buffer of a
+ * fixed size, rather than calling the RandomAccessFile for every
+ * primitive. Reads of at least a buffer's length that start outside the
+ * buffer go directly to the file. Like FileHandle, primitives are read in
+ * big endian order.
+ */
+public class BufferedFileHandle extends FileHandle {
+
+  // -- Fields --
+
+  private byte[] buffer;
+
+  /** Position in the file of the first buffered byte. */
+  private long bufferStart = 0;
+
+  /** Number of valid bytes in the buffer. */
+  private int bufferLength = 0;
+
+  private long pointer = 0;
+
+  private long length;
+
+  // -- Constructor --
+
+  public BufferedFileHandle(File file, int bufferSize) throws IOException {
+    super(file, "r");
+    buffer = new byte[bufferSize];
+    length = raf.length();
+  }
+
+  // -- IRandomAccess API methods --
+
+  @Override
+  public long getFilePointer() {
+    return pointer;
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public void seek(long pos) {
+    pointer = pos;
+  }
+
+  @Override
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!isBuffered() && len >= buffer.length) {
+      raf.seek(pointer);
+      int n = raf.read(b, off, len);
+      if (n > 0) {
+        pointer += n;
+      }
+      return n;
+    }
+    int total = 0;
+    while (len > 0 && fill()) {
+      int offset = (int) (pointer - bufferStart);
+      int n = Math.min(len, bufferLength - offset);
+      System.arraycopy(buffer, offset, b, off, n);
+      pointer += n;
+      off += n;
+      len -= n;
+      total += n;
+    }
+    return total == 0 ? -1 : total;
+  }
+
+  @Override
+  public int read(ByteBuffer b) throws IOException {
+    return read(b, 0, b.remaining());
+  }
+
+  @Override
+  public int read(ByteBuffer b, int off, int len) throws IOException {
+    byte[] bytes = new byte[len];
+    int n = read(bytes);
+    if (n > 0) {
+      b.position(off);
+      b.put(bytes, 0, n);
+    }
+    return n;
+  }
+
+  // -- DataInput API methods --
+
+  @Override
+  public void readFully(byte[] b) throws IOException {
+    readFully(b, 0, b.length);
+  }
+
+  @Override
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = read(b, off, len);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public int skipBytes(int n) {
+    int skipped = (int) Math.max(0, Math.min(n, length - pointer));
+    pointer += skipped;
+    return skipped;
+  }
+
+  @Override
+  public boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  @Override
+  public byte readByte() throws IOException {
+    if (!fill()) {
+      throw new EOFException();
+    }
+    return buffer[(int) (pointer++ - bufferStart)];
+  }
+
+  @Override
+  public int readUnsignedByte() throws IOException {
+    return readByte() & 0xff;
+  }
+
+  @Override
+  public short readShort() throws IOException {
+    return (short) readUnsignedShort();
+  }
+
+  @Override
+  public int readUnsignedShort() throws IOException {
+    return (readUnsignedByte() << 8) | readUnsignedByte();
+  }
+
+  @Override
+  public char readChar() throws IOException {
+    return (char) readUnsignedShort();
+  }
+
+  @Override
+  public int readInt() throws IOException {
+    return (readUnsignedShort() << 16) | readUnsignedShort();
+  }
+
+  @Override
+  public long readLong() throws IOException {
+    return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+  }
+
+  @Override
+  public float readFloat() throws IOException {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  @Override
+  public double readDouble() throws IOException {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  @Override
+  public String readLine() throws IOException {
+    raf.seek(pointer);
+    String line = raf.readLine();
+    pointer = raf.getFilePointer();
+    return line;
+  }
+
+  @Override
+  public String readUTF() throws IOException {
+    raf.seek(pointer);
+    String s = raf.readUTF();
+    pointer = raf.getFilePointer();
+    return s;
+  }
+
+  // -- Helper methods --
+
+  private boolean isBuffered() {
+    return pointer >= bufferStart && pointer < bufferStart + bufferLength;
+  }
+
+  /**
+   * Makes sure that the buffer holds the byte at the file pointer.
+   * Returns false at the end of the file.
+   */
+  private boolean fill() throws IOException {
+    if (isBuffered()) {
+      return true;
+    }
+    if (pointer >= length) {
+      return false;
+    }
+    raf.seek(pointer);
+    int n = raf.read(buffer, 0, buffer.length);
+    if (n <= 0) {
+      bufferLength = 0;
+      return false;
+    }
+    bufferStart = pointer;
+    bufferLength = n;
+    return true;
+  }
+
+}
@@ -0,0 +1,312 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.perf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import loci.common.ByteArrayHandle;
+import loci.common.IRandomAccess;
+import loci.common.NIOFileHandle;
+import loci.tests.testng.MappedFileHandle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the file handle backends, replacing the ad hoc timings
+ * in {@link loci.tests.IOTester}. Each backend is measured for readInt,
+ * readShort and read(byte[]) of one block, for each access pattern:
+ * <ul>
+ *   <li>sequential: each read follows the previous one</li>
+ *   <li>strided: each read skips forward 8 blocks</li>
+ *   <li>random: each read is at a random offset</li>
+ * </ul>
+ * The buffered backends are {@link loci.common.NIOFileHandle} and
+ * {@link BufferedFileHandle} (a FileHandle), both buffered with the block
+ * size. The mapped backends are a {@link ByteArrayHandle} over a single
+ * memory mapped buffer (files under 2 GB only) and
+ * {@link MappedFileHandle}; they do not buffer, so their readInt and
+ * readShort benchmarks are not repeated for each block size, and stride
+ * over blocks of {@link #MAPPED_STRIDE_BLOCK} bytes.
+ *
+ * The data file is written to the directory parameter (by default the
+ * temporary directory) with the size given by the fileSize parameter, and
+ * deleted after each trial. Run with e.g.
+ * <code>mvn -P perf compile exec:exec@io -Dperf.io.directory=/mnt/nfs</code>.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IOBenchmark {
+
+  // -- Constants --
+
+  /** Block size used to stride primitive reads on the mapped backends. */
+  public static final int MAPPED_STRIDE_BLOCK = 4096;
+
+  // -- Benchmark states --
+
+  /** A file of random data. */
+  @State(Scope.Benchmark)
+  public static class DataFile {
+    @Param({""})
+    public String directory;
+
+    @Param({"52428800"})
+    public long fileSize;
+
+    public File file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+      File dir = directory.isEmpty() ?
+        new File(System.getProperty("java.io.tmpdir")) : new File(directory);
+      file = File.createTempFile("IOBenchmark", ".tmp", dir);
+      file.deleteOnExit();
+      Random random = new Random(1234);
+      byte[] chunk = new byte[1024 * 1024];
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        for (long written=0; written<fileSize; written+=chunk.length) {
+          random.nextBytes(chunk);
+          out.write(chunk, 0, (int) Math.min(chunk.length, fileSize - written));
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+      file.delete();
+    }
+  }
+
+  /** An open handle on the data file, and the position of the next read. */
+  @State(Scope.Thread)
+  public abstract static class Handle {
+    @Param({"sequential", "strided", "random"})
+    public String pattern;
+
+    public IRandomAccess handle;
+    public long length;
+    public long next = 0;
+    public long seed = 1234;
+
+    @TearDown(Level.Trial)
+    public void closeHandle() throws IOException {
+      handle.close();
+    }
+
+    /** Returns the size of the blocks that strided reads skip over. */
+    protected abstract int getStrideBlock();
+
+    /**
+     * Moves the handle to the position of the next read of the given
+     * number of bytes. Sequential reads only seek when wrapping around.
+     */
+    public void position(int bytes) throws IOException {
+      long offset;
+      if (pattern.equals("random")) {
+        // xorshift, as java.util.Random is synchronized
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        offset = ((seed >>> 1) % (length - bytes + 1)) / bytes * bytes;
+      }
+      else {
+        offset = next;
+        if (offset + bytes > length) {
+          offset = 0;
+        }
+        next = offset +
+          (pattern.equals("strided") ? 8L * getStrideBlock() : bytes);
+        if (pattern.equals("sequential") && offset != 0) {
+          return;
+        }
+      }
+      handle.seek(offset);
+    }
+  }
+
+  /** A handle that reads through a buffer of one block. */
+  @State(Scope.Thread)
+  public static class BufferedHandle extends Handle {
+    @Param({"nio", "file"})
+    public String backend;
+
+    @Param({"4096", "65536", "1048576"})
+    public int blockSize;
+
+    public byte[] block;
+
+    @Setup(Level.Trial)
+    public void openHandle(DataFile data) throws IOException {
+      if (backend.equals("nio")) {
+        handle = new NIOFileHandle(data.file, "r", blockSize);
+      }
+      else if (backend.equals("file")) {
+        handle = new BufferedFileHandle(data.file, blockSize);
+      }
+      else {
+        throw new IllegalArgumentException("Unknown backend: " + backend);
+      }
+      length = handle.length();
+      block = new byte[blockSize];
+      if (length < blockSize) {
+        throw new IllegalArgumentException("File is smaller than a block");
+      }
+    }
+
+    @Override
+    protected int getStrideBlock() {
+      return blockSize;
+    }
+  }
+
+  /** A handle on the data file mapped into memory. */
+  @State(Scope.Thread)
+  public static class MappedHandle extends Handle {
+    @Param({"mapped", "mapped_segments"})
+    public String backend;
+
+    @Setup(Level.Trial)
+    public void openHandle(DataFile data) throws IOException {
+      if (backend.equals("mapped")) {
+        FileInputStream in = new FileInputStream(data.file);
+        try {
+          FileChannel channel = in.getChannel();
+          ByteBuffer buf =
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+          handle = new ByteArrayHandle(buf);
+        }
+        finally {
+          in.close();
+        }
+      }
+      else if (backend.equals("mapped_segments")) {
+        handle = new MappedFileHandle(data.file.getAbsolutePath());
+      }
+      else {
+        throw new IllegalArgumentException("Unknown backend: " + backend);
+      }
+      length = handle.length();
+      allocate();
+    }
+
+    /** Allocates the buffers for reading, once the handle is open. */
+    protected void allocate() {
+    }
+
+    @Override
+    protected int getStrideBlock() {
+      return MAPPED_STRIDE_BLOCK;
+    }
+  }
+
+  /** A mapped handle read one block at a time. */
+  @State(Scope.Thread)
+  public static class MappedBlockHandle extends MappedHandle {
+    @Param({"4096", "65536", "1048576"})
+    public int blockSize;
+
+    public byte[] block;
+
+    @Override
+    protected void allocate() {
+      block = new byte[blockSize];
+      if (length < blockSize) {
+        throw new IllegalArgumentException("File is smaller than a block");
+      }
+    }
+
+    @Override
+    protected int getStrideBlock() {
+      return blockSize;
+    }
+  }
+
+  // -- Benchmarks --
+
+  @Benchmark
+  public int readInt(BufferedHandle state) throws IOException {
+    state.position(4);
+    return state.handle.readInt();
+  }
+
+  @Benchmark
+  public short readShort(BufferedHandle state) throws IOException {
+    state.position(2);
+    return state.handle.readShort();
+  }
+
+  @Benchmark
+  public int readBlock(BufferedHandle state) throws IOException {
+    state.position(state.blockSize);
+    return state.handle.read(state.block);
+  }
+
+  @Benchmark
+  public int readIntMapped(MappedHandle state) throws IOException {
+    state.position(4);
+    return state.handle.readInt();
+  }
+
+  @Benchmark
+  public short readShortMapped(MappedHandle state) throws IOException {
+    state.position(2);
+    return state.handle.readShort();
+  }
+
+  @Benchmark
+  public int readBlockMapped(MappedBlockHandle state) throws IOException {
+    state.position(state.blockSize);
+    return state.handle.read(state.block);
+  }
+
+}
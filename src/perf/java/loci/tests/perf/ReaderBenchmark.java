@@ -0,0 +1,200 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.perf;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the main reader operations on a single dataset.
+ * The dataset parameter is filled in by {@link ReaderBenchmarkRunner}
+ * from a tree of configured datasets.
+ *
+ * Each pixel benchmark cycles through the planes (or tiles) of the first
+ * series, so that repeated invocations do not just measure a cached plane.
+ *
+ * Iterations are kept short, as every benchmark runs once per dataset;
+ * the number of forks can be changed with JMH's -f option (perf.forks in
+ * the perf profile).
+ */
+@Fork(2)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+public class ReaderBenchmark {
+
+  // -- Benchmark states --
+
+  /** A reader that has not yet been initialized. */
+  @State(Scope.Thread)
+  public static class Dataset {
+    @Param({""})
+    public String dataset;
+
+    public ImageReader reader;
+
+    @Setup(Level.Invocation)
+    public void createReader() {
+      reader = new ImageReader();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeReader() throws IOException {
+      reader.close();
+    }
+  }
+
+  /** A reader that has been initialized with the dataset. */
+  @State(Scope.Thread)
+  public static class OpenDataset {
+    @Param({""})
+    public String dataset;
+
+    public ImageReader reader;
+    public byte[] plane;
+    public byte[] tile;
+    public int tileWidth, tileHeight, tileCount, tilesPerRow;
+    public int nextPlane = 0;
+    public int nextTile = 0;
+    public int tilePlane = 0;
+
+    @Setup(Level.Trial)
+    public void openReader() throws FormatException, IOException {
+      reader = new ImageReader();
+      reader.setId(dataset);
+      reader.setSeries(0);
+      plane = new byte[FormatTools.getPlaneSize(reader)];
+
+      tileWidth = Math.min(reader.getOptimalTileWidth(), reader.getSizeX());
+      tileHeight = Math.min(reader.getOptimalTileHeight(), reader.getSizeY());
+      tilesPerRow = (reader.getSizeX() + tileWidth - 1) / tileWidth;
+      int tileRows = (reader.getSizeY() + tileHeight - 1) / tileHeight;
+      tileCount = tilesPerRow * tileRows;
+      tile = new byte[FormatTools.getPlaneSize(reader, tileWidth, tileHeight)];
+    }
+
+    @TearDown(Level.Trial)
+    public void closeReader() throws IOException {
+      reader.close();
+    }
+
+    /** Returns the index of the next plane to read. */
+    public int nextPlane() {
+      int no = nextPlane;
+      nextPlane = (nextPlane + 1) % reader.getImageCount();
+      return no;
+    }
+  }
+
+  /** A reader that is initialized before each invocation. */
+  @State(Scope.Thread)
+  public static class InitializedDataset {
+    @Param({""})
+    public String dataset;
+
+    public ImageReader reader;
+
+    @Setup(Level.Invocation)
+    public void openReader() throws FormatException, IOException {
+      reader = new ImageReader();
+      reader.setId(dataset);
+    }
+  }
+
+  // -- Benchmarks --
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public ImageReader setId(Dataset state) throws FormatException, IOException {
+    state.reader.setId(state.dataset);
+    return state.reader;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public byte[] openBytes(OpenDataset state)
+    throws FormatException, IOException
+  {
+    return state.reader.openBytes(state.nextPlane(), state.plane);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public byte[] openBytesTile(OpenDataset state)
+    throws FormatException, IOException
+  {
+    int no = state.tilePlane;
+    int tileIndex = state.nextTile++;
+    if (state.nextTile == state.tileCount) {
+      state.nextTile = 0;
+      state.tilePlane = (state.tilePlane + 1) % state.reader.getImageCount();
+    }
+
+    int x = (tileIndex % state.tilesPerRow) * state.tileWidth;
+    int y = (tileIndex / state.tilesPerRow) * state.tileHeight;
+    int w = Math.min(state.tileWidth, state.reader.getSizeX() - x);
+    int h = Math.min(state.tileHeight, state.reader.getSizeY() - y);
+    return state.reader.openBytes(no, state.tile, x, y, w, h);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public byte[] openThumbBytes(OpenDataset state)
+    throws FormatException, IOException
+  {
+    return state.reader.openThumbBytes(state.nextPlane());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void close(InitializedDataset state) throws IOException {
+    state.reader.close();
+  }
+
+}
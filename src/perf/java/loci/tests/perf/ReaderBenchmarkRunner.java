@@ -0,0 +1,147 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package loci.tests.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import loci.formats.FormatTools;
+import loci.tests.testng.Configuration;
+import loci.tests.testng.ConfigurationTree;
+import loci.tests.testng.TestTools;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs {@link ReaderBenchmark} on every configured dataset in a directory
+ * tree, then summarizes the results by reader.
+ *
+ * Usage: <code>ReaderBenchmarkRunner directory [JMH options]</code>
+ *
+ * The testng.configDirectory system property may be used to point at an
+ * alternate configuration tree, as for the reader tests.
+ */
+public class ReaderBenchmarkRunner {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ReaderBenchmarkRunner.class);
+
+  // -- Main method --
+
+  public static void main(String[] args)
+    throws CommandLineOptionException, IOException, RunnerException
+  {
+    if (args.length < 1 || args[0].isEmpty()) {
+      LOGGER.error("Usage: ReaderBenchmarkRunner directory [JMH options]");
+      System.exit(1);
+    }
+    String baseDir = args[0];
+    String configDir = TestTools.getProperty("testng.configDirectory");
+    if (configDir != null && configDir.isEmpty()) {
+      configDir = null;
+    }
+    ConfigurationTree configTree = new ConfigurationTree(baseDir, configDir);
+
+    List<String> files = new ArrayList<String>();
+    try {
+      TestTools.getFiles(baseDir, files, configTree, null, null, "");
+    }
+    catch (Exception e) {
+      LOGGER.info("Failed to retrieve complete list of files", e);
+    }
+
+    // only benchmark configured datasets whose planes fit in memory
+    Map<String, String> readers = new HashMap<String, String>();
+    List<String> datasets = new ArrayList<String>();
+    for (String file : files) {
+      Configuration config = configTree.get(file);
+      if (config == null) {
+        continue;
+      }
+      long planeSize;
+      try {
+        config.setSeries(0);
+        planeSize = (long) config.getSizeX() * config.getSizeY() *
+          config.getSizeC() * FormatTools.getBytesPerPixel(
+          FormatTools.pixelTypeFromString(config.getPixelType()));
+      }
+      catch (RuntimeException e) {
+        LOGGER.warn("Skipping {}: incomplete configuration", file, e);
+        continue;
+      }
+      if (!TestTools.canFitInMemory(planeSize)) {
+        LOGGER.info("Skipping {}: plane too large", file);
+        continue;
+      }
+      datasets.add(file);
+      readers.put(file, config.getReader());
+    }
+    if (datasets.isEmpty()) {
+      LOGGER.error("No configured datasets found in {}", baseDir);
+      System.exit(1);
+    }
+    LOGGER.info("Benchmarking {} datasets", datasets.size());
+
+    String[] jmhArgs = Arrays.copyOfRange(args, 1, args.length);
+    Options options = new OptionsBuilder()
+      .parent(new CommandLineOptions(jmhArgs))
+      .include(ReaderBenchmark.class.getName())
+      .param("dataset", datasets.toArray(new String[datasets.size()]))
+      .build();
+    Collection<RunResult> results = new Runner(options).run();
+
+    // summarize by reader
+    LOGGER.info("reader\tbenchmark\tdataset\tscore\terror\tunit");
+    for (RunResult result : results) {
+      String dataset = result.getParams().getParam("dataset");
+      String benchmark = result.getParams().getBenchmark();
+      benchmark = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+      LOGGER.info("{}\t{}\t{}\t{}\t{}\t{}", new Object[] {
+        readers.get(dataset), benchmark, new File(dataset).getName(),
+        result.getPrimaryResult().getScore(),
+        result.getPrimaryResult().getScoreError(),
+        result.getPrimaryResult().getScoreUnit()});
+    }
+  }
+
+}